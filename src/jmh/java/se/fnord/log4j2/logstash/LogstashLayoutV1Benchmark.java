@@ -0,0 +1,241 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.GelfLayout;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.fnord.taggedmessage.TaggedMessage;
+import se.fnord.taggedmessage.Tags;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares LogstashLayoutV1 with the log4j JsonLayout and GelfLayout across a set of representative events.
+ *
+ * Run with {@code ./gradlew jmh}; the gc profiler is enabled by default, and {@code gc.alloc.rate.norm} is the
+ * number of bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogstashLayoutV1Benchmark {
+    private static final int BATCH_SIZE = 16;
+
+    @Param({ "logstash", "logstashCbor", "json", "gelf" })
+    public String layoutType;
+
+    @Param({ "simple", "parameterized", "tagged", "largeContext", "deepStackTrace", "nonAscii" })
+    public String eventType;
+
+    private Layout<?> layout;
+    private LogEvent event;
+    private List<LogEvent> batch;
+    private NullDestination destination;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        layout = createLayout(layoutType);
+        event = createEvent(eventType);
+        batch = Collections.nCopies(BATCH_SIZE, event);
+        destination = new NullDestination();
+    }
+
+    @Benchmark
+    public int encode() {
+        layout.encode(event, destination);
+        return destination.drainedBytes();
+    }
+
+    // LogstashLayoutV1 encodes the batch back to back, the other layouts one event at a time
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int encodeBatch() {
+        if (layout instanceof LogstashLayoutV1) {
+            ((LogstashLayoutV1) layout).encode(batch, destination);
+        } else {
+            for (int i = 0; i < batch.size(); i++) {
+                layout.encode(batch.get(i), destination);
+            }
+        }
+        return destination.drainedBytes();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return layout.toByteArray(event);
+    }
+
+    @Benchmark
+    public Object toSerializable() {
+        return layout.toSerializable(event);
+    }
+
+    private static Layout<?> createLayout(String layoutType) {
+        switch (layoutType) {
+            case "logstash":
+                return LogstashLayoutV1.newBuilder()
+                        .setHost("benchmark-host")
+                        .build();
+            case "logstashCbor":
+                return LogstashLayoutV1.newBuilder()
+                        .setHost("benchmark-host")
+                        .setFormat(OutputFormat.CBOR)
+                        .build();
+            case "json":
+                return JsonLayout.newBuilder()
+                        .setConfiguration(new DefaultConfiguration())
+                        .setCompact(true)
+                        .setEventEol(true)
+                        .setProperties(true)
+                        .setIncludeStacktrace(true)
+                        .setStacktraceAsString(true)
+                        .build();
+            case "gelf":
+                return GelfLayout.newBuilder()
+                        .setConfiguration(new DefaultConfiguration())
+                        .setHost("benchmark-host")
+                        .setCompressionType(GelfLayout.CompressionType.OFF)
+                        .setIncludeNullDelimiter(true)
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown layout " + layoutType);
+        }
+    }
+
+    private static LogEvent createEvent(String eventType) {
+        Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder()
+                .setTimeMillis(System.currentTimeMillis())
+                .setLevel(org.apache.logging.log4j.Level.INFO)
+                .setThreadName("http-nio-8080-exec-12")
+                .setLoggerName("se.fnord.service.RequestHandler")
+                .setContextData(contextData(3))
+                .setMessage(new SimpleMessage("Request completed"));
+
+        switch (eventType) {
+            case "simple":
+                break;
+            case "parameterized":
+                builder.setMessage(new ParameterizedMessage("User {} fetched {} items in {} ms",
+                        "alice", 42, 17.5));
+                break;
+            case "tagged":
+                builder.setMessage(taggedMessage());
+                break;
+            case "largeContext":
+                builder.setContextData(contextData(20));
+                break;
+            case "deepStackTrace":
+                builder.setLevel(org.apache.logging.log4j.Level.ERROR)
+                        .setMessage(new SimpleMessage("Request failed"))
+                        .setThrown(deepThrowable());
+                break;
+            case "nonAscii":
+                // Swedish, German, Japanese and an emoji (surrogate pair), plus characters that need escaping
+                builder.setThreadName("worker-\u00E5\u00E4\u00F6")
+                        .setMessage(new SimpleMessage(
+                                "Gr\u00FC\u00DFe fr\u00E5n G\u00F6teborg \u2014 \u65E5\u672C\u8A9E\u30C6\u30AD\u30B9\u30C8 " +
+                                "\uD83D\uDE80 \"quoted\"\ttab"));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event " + eventType);
+        }
+        return builder.build();
+    }
+
+    private static Message taggedMessage() {
+        return new TaggedMessage(Tags.of(
+                "message", "Request completed",
+                "status", 200,
+                "duration", 17.5,
+                "cached", false,
+                "user", "alice"), null);
+    }
+
+    private static SortedArrayStringMap contextData(int size) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap(size);
+        for (int i = 0; i < size; i++) {
+            contextData.putValue("key" + i, "value-" + i);
+        }
+        contextData.freeze();
+        return contextData;
+    }
+
+    private static Throwable deepThrowable() {
+        try {
+            recurse(64);
+        }
+        catch (IllegalStateException e) {
+            return new RuntimeException("Wrapped", e);
+        }
+        throw new AssertionError();
+    }
+
+    private static void recurse(int depth) {
+        if (depth == 0) {
+            throw new IllegalStateException("Too deep");
+        }
+        recurse(depth - 1);
+    }
+}
+
+class NullDestination implements ByteBufferDestination {
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(8 * 1024);
+    private int drainedBytes;
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        buf.flip();
+        drainedBytes += buf.remaining();
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer data) {
+        drainedBytes += data.remaining();
+        data.position(data.limit());
+    }
+
+    @Override
+    public void writeBytes(byte[] data, int offset, int length) {
+        drainedBytes += length;
+    }
+
+    int drainedBytes() {
+        drain(byteBuffer);
+        int drained = drainedBytes;
+        drainedBytes = 0;
+        return drained;
+    }
+}
@@ -0,0 +1,20 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * How the buffers that events are rendered with are provided to the threads that log.
+ */
+public enum BufferPool {
+    /**
+     * Every thread keeps its own buffers, which is the cheapest when a limited number of threads log.
+     */
+    THREAD_LOCAL,
+    /**
+     * Threads borrow buffers from a bounded pool for each event, so that the memory held does not grow with the
+     * number of threads, like with virtual threads.
+     */
+    POOLED,
+    /**
+     * Virtual threads borrow buffers from a pool, other threads keep their own.
+     */
+    AUTO
+}
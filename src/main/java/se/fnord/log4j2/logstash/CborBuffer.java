@@ -0,0 +1,200 @@
+package se.fnord.log4j2.logstash;
+
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * A {@link JsonBuffer} that renders the same structure as CBOR (RFC 8949) rather than JSON.
+ *
+ * Objects and arrays are encoded with indefinite length, and text is appended as plain UTF-8 with nothing to escape.
+ * Strings are written first and their length header inserted in front of them when they end, so that text can be
+ * appended piecewise like with JSON. Events are self-delimiting, so nothing separates them.
+ */
+final class CborBuffer extends JsonBuffer {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1 << 5;
+    private static final int MAJOR_TEXT = 3 << 5;
+    private static final byte INDEFINITE_ARRAY = (byte) 0x9f;
+    private static final byte INDEFINITE_MAP = (byte) 0xbf;
+    private static final byte BREAK = (byte) 0xff;
+    private static final byte FALSE = (byte) 0xf4;
+    private static final byte TRUE = (byte) 0xf5;
+    private static final byte NULL = (byte) 0xf6;
+    private static final byte FLOAT32 = (byte) 0xfa;
+    private static final byte FLOAT64 = (byte) 0xfb;
+
+    private int stringStart = -1;
+
+    CborBuffer(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    JsonBuffer newBuffer(int capacity) {
+        return new CborBuffer(capacity);
+    }
+
+    /**
+     * @return ISO-8859-1, which maps each byte to the char of the same value, so that the string form of an event
+     * encodes back to the same bytes
+     */
+    @Override
+    Charset charset() {
+        return ISO_8859_1;
+    }
+
+    @Override
+    int beginObject() {
+        int start = length();
+        append(INDEFINITE_MAP);
+        return start;
+    }
+
+    @Override
+    void endObject(int start) {
+        append(BREAK);
+    }
+
+    @Override
+    JsonBuffer beginArray() {
+        return append(INDEFINITE_ARRAY);
+    }
+
+    @Override
+    JsonBuffer appendArraySeparator() {
+        return this;
+    }
+
+    @Override
+    JsonBuffer endArray() {
+        return append(BREAK);
+    }
+
+    @Override
+    JsonBuffer beginFieldName() {
+        return beginString();
+    }
+
+    @Override
+    JsonBuffer endFieldName() {
+        return endString();
+    }
+
+    @Override
+    JsonBuffer beginString() {
+        stringStart = length();
+        return this;
+    }
+
+    // Moves the text forward to make room for the header, which is usually a single byte
+    @Override
+    JsonBuffer endString() {
+        int start = stringStart;
+        int count = length() - start;
+        int headerLength = headerLength(count);
+        ensureCapacity(length() + headerLength);
+        byte[] bytes = bytes();
+        System.arraycopy(bytes, start, bytes, start + headerLength, count);
+        setLength(start);
+        appendHeader(MAJOR_TEXT, count);
+        setLength(start + headerLength + count);
+        stringStart = -1;
+        return this;
+    }
+
+    @Override
+    void appendEventSeparator() {
+    }
+
+    @Override
+    JsonBuffer appendNull() {
+        return append(NULL);
+    }
+
+    @Override
+    JsonBuffer append(long value) {
+        if (value < 0) {
+            appendHeader(MAJOR_NEGATIVE, -1 - value);
+        } else {
+            appendHeader(MAJOR_UNSIGNED, value);
+        }
+        return this;
+    }
+
+    // Single precision is used when it represents the value exactly
+    @Override
+    JsonBuffer append(double value) {
+        float f = (float) value;
+        if (f == value) {
+            append(FLOAT32);
+            appendBigEndian(Float.floatToIntBits(f), 4);
+        } else {
+            append(FLOAT64);
+            appendBigEndian(Double.doubleToLongBits(value), 8);
+        }
+        return this;
+    }
+
+    // Every float is exact in single precision
+    @Override
+    JsonBuffer append(float value) {
+        return append((double) value);
+    }
+
+    @Override
+    JsonBuffer append(boolean value) {
+        return append(value ? TRUE : FALSE);
+    }
+
+    /**
+     * Appends text UTF-8 encoded; unpaired surrogates are replaced with {@code '?'}, like
+     * {@link String#getBytes(Charset)}.
+     */
+    @Override
+    JsonBuffer appendEscaped(CharSequence s) {
+        return appendUtf8(s, NO_ESCAPES);
+    }
+
+    @Override
+    JsonBuffer appendEscaped(CharSequence s, int start, int end) {
+        return appendUtf8(s, start, end, NO_ESCAPES);
+    }
+
+    private void appendHeader(int majorType, long argument) {
+        if (argument < 24) {
+            append((byte) (majorType | argument));
+        } else if (argument < 0x100) {
+            append((byte) (majorType | 24));
+            appendBigEndian(argument, 1);
+        } else if (argument < 0x10000) {
+            append((byte) (majorType | 25));
+            appendBigEndian(argument, 2);
+        } else if (argument < 0x100000000L) {
+            append((byte) (majorType | 26));
+            appendBigEndian(argument, 4);
+        } else {
+            append((byte) (majorType | 27));
+            appendBigEndian(argument, 8);
+        }
+    }
+
+    private static int headerLength(int argument) {
+        if (argument < 24) {
+            return 1;
+        }
+        if (argument < 0x100) {
+            return 2;
+        }
+        if (argument < 0x10000) {
+            return 3;
+        }
+        return 5;
+    }
+
+    private void appendBigEndian(long value, int byteCount) {
+        for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+            append((byte) (value >>> shift));
+        }
+    }
+}
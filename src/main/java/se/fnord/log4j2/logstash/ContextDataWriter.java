@@ -0,0 +1,83 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.util.TriConsumer;
+
+/**
+ * Renders string map entries as fields, like the thread context with keys prefixed with an underscore.
+ *
+ * The rendered name of each field is cached, since the set of keys is small and fixed in practice. Values
+ * are rendered without converting them to strings first; optionally numbers and booleans are rendered as JSON
+ * numbers and booleans rather than as strings. Text values, and the text of any other objects, can be cut at a maximum
+ * length.
+ */
+final class ContextDataWriter implements TriConsumer<String, Object, JsonBuffer> {
+    private static final String NULL = "null";
+
+    private final String keyPrefix;
+    private final FragmentCache<String> keyCache;
+    private final boolean typedValues;
+    private final int maxValueLength;
+
+    /**
+     * @param keyPrefix prefix of every key, not escaped
+     * @param keyCache cache of rendered field names, or {@code null} to render them for every entry
+     * @param typedValues render numbers and booleans as such rather than as strings
+     */
+    ContextDataWriter(String keyPrefix, FragmentCache<String> keyCache, boolean typedValues) {
+        this(keyPrefix, keyCache, typedValues, 0);
+    }
+
+    /**
+     * @param keyPrefix prefix of every key, not escaped
+     * @param keyCache cache of rendered field names, or {@code null} to render them for every entry
+     * @param typedValues render numbers and booleans as such rather than as strings
+     * @param maxValueLength the maximum number of characters of text values, or {@code 0} for no limit
+     */
+    ContextDataWriter(String keyPrefix, FragmentCache<String> keyCache, boolean typedValues, int maxValueLength) {
+        this.keyPrefix = keyPrefix;
+        this.keyCache = keyCache;
+        this.typedValues = typedValues;
+        this.maxValueLength = maxValueLength;
+    }
+
+    @Override
+    public void accept(String key, Object value, JsonBuffer jsonBuffer) {
+        appendKey(key, jsonBuffer);
+        if (value instanceof CharSequence) {
+            appendText((CharSequence) value, jsonBuffer);
+        } else if (typedValues) {
+            jsonBuffer.appendValue(value, maxValueLength);
+        } else if (value == null) {
+            jsonBuffer.appendString(NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            jsonBuffer.beginString()
+                    .appendDecimal(((Number) value).longValue())
+                    .endString();
+        } else {
+            appendText(String.valueOf(value), jsonBuffer);
+        }
+    }
+
+    private void appendText(CharSequence value, JsonBuffer jsonBuffer) {
+        jsonBuffer.beginString()
+                .appendTruncated(value, maxValueLength)
+                .endString();
+    }
+
+    private void appendKey(String key, JsonBuffer jsonBuffer) {
+        byte[] fragment = keyCache != null ? keyCache.get(key) : null;
+        if (fragment != null) {
+            jsonBuffer.append(fragment);
+            return;
+        }
+        int start = jsonBuffer.length();
+        jsonBuffer.beginFieldName()
+                .appendAscii(keyPrefix)
+                .appendEscaped(key)
+                .endFieldName();
+        if (keyCache != null) {
+            keyCache.put(key, jsonBuffer.toByteArray(start));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.util.StringBuilders;
+
+/**
+ * The reusable buffers and scratch state an event is rendered with. {@code text} is scratch space for formatting
+ * messages and other text before they are escaped into {@code json}, which holds the encoded event, or the events of
+ * a batch.
+ */
+final class EncodingBuffers {
+    final StringBuilder text;
+    final JsonBuffer json;
+    final StackTraceRenderer stackTraceRenderer;
+    final RenderedContextData renderedContextData;
+
+    EncodingBuffers(OutputFormat format, int capacity) {
+        this.text = new StringBuilder(capacity);
+        this.json = format.newBuffer(capacity);
+        this.stackTraceRenderer = new StackTraceRenderer(json);
+        this.renderedContextData = new RenderedContextData();
+    }
+
+    void reset() {
+        text.setLength(0);
+        json.setLength(0);
+    }
+
+    /**
+     * @return whether any of the buffers had grown past the maximum size and was replaced
+     */
+    boolean trimToMaxSize(int maxSize) {
+        boolean trimmed = text.capacity() > maxSize;
+        StringBuilders.trimToMaxSize(text, maxSize);
+        trimmed |= json.trimToMaxSize(maxSize);
+        trimmed |= renderedContextData.trimToMaxSize(maxSize);
+        return trimmed;
+    }
+}
@@ -0,0 +1,166 @@
+package se.fnord.log4j2.logstash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Provides {@link EncodingBuffers} to the threads that render events. Buffers are acquired for each event and
+ * released when it has been rendered.
+ */
+abstract class EncodingBuffersSource {
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    abstract EncodingBuffers acquire();
+
+    abstract void release(EncodingBuffers buffers);
+
+    /**
+     * @return whether the current thread gets the same buffers for every event, so that they can hold on to state
+     * between events
+     */
+    abstract boolean isThreadBound();
+
+    static EncodingBuffersSource threadLocal(Supplier<EncodingBuffers> factory) {
+        return new ThreadLocalSource(factory);
+    }
+
+    static EncodingBuffersSource pooled(Supplier<EncodingBuffers> factory, int size) {
+        return new PooledSource(factory, size);
+    }
+
+    /**
+     * @return a source that uses {@code pooled} on virtual threads, and {@code threadLocal} on other threads
+     */
+    static EncodingBuffersSource auto(EncodingBuffersSource threadLocal, EncodingBuffersSource pooled) {
+        return IS_VIRTUAL != null ? new AutoSource(threadLocal, pooled) : threadLocal;
+    }
+
+    // Thread.isVirtual() is only available from Java 21
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup()
+                    .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        }
+        catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static final class ThreadLocalSource extends EncodingBuffersSource {
+        private final ThreadLocal<EncodingBuffers> buffers;
+
+        ThreadLocalSource(Supplier<EncodingBuffers> factory) {
+            this.buffers = ThreadLocal.withInitial(factory);
+        }
+
+        @Override
+        EncodingBuffers acquire() {
+            return buffers.get();
+        }
+
+        @Override
+        void release(EncodingBuffers buffers) {
+        }
+
+        @Override
+        boolean isThreadBound() {
+            return true;
+        }
+    }
+
+    /**
+     * A bounded pool of buffers, where each thread starts looking for free buffers at a slot given by its id, so that
+     * threads mostly take and return buffers at different slots. Buffers are created when the pool has none to spare,
+     * and dropped when it is full.
+     */
+    private static final class PooledSource extends EncodingBuffersSource {
+        private final Supplier<EncodingBuffers> factory;
+        private final AtomicReferenceArray<EncodingBuffers> slots;
+        private final int mask;
+
+        PooledSource(Supplier<EncodingBuffers> factory, int size) {
+            int slotCount = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+            this.factory = factory;
+            this.slots = new AtomicReferenceArray<>(slotCount);
+            this.mask = slotCount - 1;
+        }
+
+        private int home() {
+            long id = Thread.currentThread().getId();
+            return (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        }
+
+        @Override
+        EncodingBuffers acquire() {
+            int home = home();
+            for (int i = 0; i <= mask; i++) {
+                int slot = (home + i) & mask;
+                EncodingBuffers buffers = slots.get(slot);
+                if (buffers != null && slots.compareAndSet(slot, buffers, null)) {
+                    return buffers;
+                }
+            }
+            return factory.get();
+        }
+
+        @Override
+        void release(EncodingBuffers buffers) {
+            int home = home();
+            for (int i = 0; i <= mask; i++) {
+                int slot = (home + i) & mask;
+                if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffers)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        boolean isThreadBound() {
+            return false;
+        }
+    }
+
+    private static final class AutoSource extends EncodingBuffersSource {
+        private final EncodingBuffersSource threadLocal;
+        private final EncodingBuffersSource pooled;
+
+        AutoSource(EncodingBuffersSource threadLocal, EncodingBuffersSource pooled) {
+            this.threadLocal = threadLocal;
+            this.pooled = pooled;
+        }
+
+        private EncodingBuffersSource current() {
+            return isVirtual(Thread.currentThread()) ? pooled : threadLocal;
+        }
+
+        @Override
+        EncodingBuffers acquire() {
+            return current().acquire();
+        }
+
+        @Override
+        void release(EncodingBuffers buffers) {
+            current().release(buffers);
+        }
+
+        @Override
+        boolean isThreadBound() {
+            return current().isThreadBound();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * The fields of an event that have fixed names, which can be renamed or left out with {@link FieldName}.
+ *
+ * Each field has a default name in each of the {@link FieldNames} presets. The thread context, the tags of tagged
+ * messages and the entries of map messages are rendered with their own keys.
+ */
+public enum Field {
+    VERSION("@version", null),
+    HOST("source_host", "host.name"),
+    TIMESTAMP("@timestamp", "@timestamp"),
+    LEVEL("level", "log.level"),
+    LEVEL_VALUE("level_value", "log.syslog.severity.code"),
+    THREAD_NAME("thread_name", "process.thread.name"),
+    LOGGER_NAME("logger_name", "log.logger"),
+    STACK_HASH("stack_hash", "error.stack_hash"),
+    STACK_TRACE("stack_trace", "error.stack_trace"),
+    STACK_TRACE_SUPPRESSED("stack_trace_suppressed", "error.stack_trace_suppressed"),
+    EXCEPTION_CLASS("exception_class", "error.type"),
+    EXCEPTION_MESSAGE("exception_message", "error.message"),
+    ROOT_CAUSE_CLASS("root_cause_class", "error.root_cause.type"),
+    ROOT_CAUSE_MESSAGE("root_cause_message", "error.root_cause.message"),
+    FRAMES("frames", "error.frames"),
+    MESSAGE("message", "message"),
+    MESSAGE_TEMPLATE("message_template", "message_template"),
+    MESSAGE_PARAMS("message_params", "message_params");
+
+    private final String logstashName;
+    private final String ecsName;
+
+    Field(String logstashName, String ecsName) {
+        this.logstashName = logstashName;
+        this.ecsName = ecsName;
+    }
+
+    /**
+     * @return the name of the field in the Logstash event format
+     */
+    public String getLogstashName() {
+        return logstashName;
+    }
+
+    /**
+     * @return the name of the field in the Elastic Common Schema, or {@code null} if the field has no counterpart
+     */
+    public String getEcsName() {
+        return ecsName;
+    }
+}
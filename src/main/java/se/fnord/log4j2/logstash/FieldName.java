@@ -0,0 +1,102 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+/**
+ * Renames or leaves out one of the {@link Field}s of the layout, overriding the {@link FieldNames} preset:
+ * <pre>
+ * &lt;FieldName field="THREAD_NAME" name="thread"/&gt;
+ * &lt;FieldName field="LEVEL_VALUE" enabled="false"/&gt;
+ * </pre>
+ */
+@Plugin(name = "FieldName", category = Node.CATEGORY, printObject = true)
+public final class FieldName {
+    private final Field field;
+    private final String name;
+    private final boolean enabled;
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<FieldName> {
+        @PluginBuilderAttribute
+        @Required(message = "No field provided for FieldName")
+        private Field field;
+
+        @PluginBuilderAttribute
+        private String name;
+
+        @PluginBuilderAttribute
+        private boolean enabled = true;
+
+        public Builder setField(Field field) {
+            this.field = field;
+            return this;
+        }
+
+        public Builder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+
+        @Override
+        public FieldName build() {
+            return new FieldName(field, name, enabled);
+        }
+    }
+
+    private FieldName(Field field, String name, boolean enabled) {
+        this.field = field;
+        this.name = name;
+        this.enabled = enabled;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static FieldName rename(Field field, String name) {
+        return new FieldName(field, name, true);
+    }
+
+    public static FieldName disable(Field field) {
+        return new FieldName(field, null, false);
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * @return the name of the field, or {@code null} to keep the name of the preset
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the name to render the field with, or {@code null} if it is left out
+     */
+    String resolve(String defaultName) {
+        if (!enabled) {
+            return null;
+        }
+        return name != null ? name : defaultName;
+    }
+
+    @Override
+    public String toString() {
+        return field + (enabled ? "=" + name : " disabled");
+    }
+}
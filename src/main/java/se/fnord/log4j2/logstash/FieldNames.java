@@ -0,0 +1,30 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * Presets of default {@link Field} names.
+ */
+public enum FieldNames {
+    /**
+     * The names of the Logstash event format, which the layout has always used.
+     */
+    LOGSTASH {
+        @Override
+        public String defaultName(Field field) {
+            return field.getLogstashName();
+        }
+    },
+    /**
+     * The names of the Elastic Common Schema. Fields without a counterpart in the schema are left out.
+     */
+    ECS {
+        @Override
+        public String defaultName(Field field) {
+            return field.getEcsName();
+        }
+    };
+
+    /**
+     * @return the default name of the field, or {@code null} if it is left out by default
+     */
+    public abstract String defaultName(Field field);
+}
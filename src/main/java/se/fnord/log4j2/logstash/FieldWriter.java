@@ -0,0 +1,12 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * Renders one or a group of fields of an event, each preceded by a comma. The layout compiles its configuration into
+ * an array of these when it is built.
+ */
+@FunctionalInterface
+interface FieldWriter {
+    void write(LogEvent event, EncodingBuffers buffers);
+}
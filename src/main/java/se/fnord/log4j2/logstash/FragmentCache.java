@@ -0,0 +1,75 @@
+package se.fnord.log4j2.logstash;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of pre-rendered JSON fragments.
+ *
+ * The cache is direct-mapped: each key hashes to a single slot, and storing a fragment replaces whatever occupied
+ * the slot before, so the size never exceeds the configured number of entries and neither lookups nor evictions
+ * take locks. Entries are immutable, so they can be published to other threads without synchronization.
+ */
+final class FragmentCache<K> {
+    private static final int MAX_ENTRIES = 1 << 30;
+
+    private static final class Entry<K> {
+        final K key;
+        final byte[] fragment;
+
+        Entry(K key, byte[] fragment) {
+            this.key = key;
+            this.fragment = fragment;
+        }
+    }
+
+    private final Entry<?>[] entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries the maximum number of entries, rounded up to the nearest power of two
+     */
+    FragmentCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        int size = maxEntries >= MAX_ENTRIES ? MAX_ENTRIES : Integer.highestOneBit(maxEntries - 1) << 1;
+        this.entries = new Entry<?>[Math.max(size, 1)];
+        this.mask = entries.length - 1;
+    }
+
+    /**
+     * @return the cached fragment for the key, or {@code null} if it is not cached
+     */
+    byte[] get(K key) {
+        Entry<?> entry = entries[index(key)];
+        if (entry != null && entry.key.equals(key)) {
+            hits.increment();
+            return entry.fragment;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(K key, byte[] fragment) {
+        entries[index(key)] = new Entry<>(key, fragment);
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private int index(K key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,116 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link ByteBufferDestination} that collects what layouts encode in a byte array, which grows as needed and is
+ * reused, so that appenders can frame events before they are written.
+ */
+final class GrowableByteDestination implements ByteBufferDestination {
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+    private final int initialCapacity;
+    private byte[] bytes;
+    private int length;
+
+    GrowableByteDestination(int capacity) {
+        this.initialCapacity = capacity;
+        this.bytes = new byte[capacity];
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Empties the destination, and replaces the array with one of the initial capacity if it has grown past
+     * {@code maxSize}, so that a single large event does not keep its memory for good.
+     *
+     * @return whether the array was replaced
+     */
+    boolean trimToMaxSize(int maxSize) {
+        length = 0;
+        if (bytes.length > maxSize) {
+            bytes = new byte[initialCapacity];
+            return true;
+        }
+        return false;
+    }
+
+    void ensureCapacity(int minCapacity) {
+        if (minCapacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length * 2));
+        }
+    }
+
+    /**
+     * Appends an event encoded by the layout; if encoding fails, nothing is appended.
+     *
+     * @return the number of bytes appended
+     */
+    int encode(LogEvent event, Layout<?> layout) {
+        int start = length;
+        try {
+            layout.encode(event, this);
+            drain(byteBuffer);
+        }
+        catch (RuntimeException | Error e) {
+            length = start;
+            byteBuffer.clear();
+            throw e;
+        }
+        return length - start;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        buf.flip();
+        if (buf.hasRemaining()) {
+            int remaining = buf.remaining();
+            ensureCapacity(length + remaining);
+            buf.get(bytes, length, remaining);
+            length += remaining;
+        }
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer data) {
+        if (data.remaining() > byteBuffer.remaining()) {
+            drain(byteBuffer);
+            int remaining = data.remaining();
+            ensureCapacity(length + remaining);
+            data.get(bytes, length, remaining);
+            length += remaining;
+        } else {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        }
+    }
+
+    @Override
+    public void writeBytes(byte[] data, int offset, int length) {
+        drain(byteBuffer);
+        ensureCapacity(this.length + length);
+        System.arraycopy(data, offset, bytes, this.length, length);
+        this.length += length;
+    }
+}
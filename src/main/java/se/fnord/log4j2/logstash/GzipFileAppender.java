@@ -0,0 +1,140 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes events compressed into a file of gzip members, one per block of events.
+ *
+ * The layout defaults to a {@link LogstashLayoutV1}.
+ */
+@Plugin(name = "GzipFile", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class GzipFileAppender extends AbstractAppender {
+    private final GzipFileManager manager;
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<GzipFileAppender> {
+
+        @PluginBuilderAttribute
+        @Required
+        private String fileName;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = 6;
+
+        @PluginBuilderAttribute
+        private int blockSize = 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private long blockMillis = 60 * 1000;
+
+        public Builder() {
+            super();
+        }
+
+        @Override
+        public GzipFileAppender build() {
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+            }
+            if (blockSize < 1) {
+                throw new IllegalArgumentException("blockSize must be at least 1");
+            }
+            Layout<? extends Serializable> layout = getLayout();
+            if (layout == null) {
+                layout = LogstashLayoutV1.newBuilder().setConfiguration(getConfiguration()).build();
+            }
+            GzipFileManager manager = GzipFileManager.getManager(fileName, compressionLevel, blockSize, blockMillis);
+            if (manager == null) {
+                LOGGER.error("Unable to open {} for {}", fileName, getName());
+                return null;
+            }
+            return new GzipFileAppender(getName(), getFilter(), layout, isIgnoreExceptions(), getPropertyArray(),
+                    manager);
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public long getBlockMillis() {
+            return blockMillis;
+        }
+
+        public B setFileName(String fileName) {
+            this.fileName = fileName;
+            return asBuilder();
+        }
+
+        public B setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        /**
+         * @param blockSize the number of bytes of events after which a block ends
+         */
+        public B setBlockSize(int blockSize) {
+            this.blockSize = blockSize;
+            return asBuilder();
+        }
+
+        /**
+         * @param blockMillis the age of a block after which it ends, whether or not more events arrive, or 0 to only
+         *                    end blocks by size
+         */
+        public B setBlockMillis(long blockMillis) {
+            this.blockMillis = blockMillis;
+            return asBuilder();
+        }
+    }
+
+    private GzipFileAppender(String name, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions,
+            Property[] properties, GzipFileManager manager) {
+        super(name, filter, layout, ignoreExceptions, properties);
+        this.manager = manager;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    public GzipFileManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        manager.write(event, getLayout());
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        stopped &= manager.stop(timeout, timeUnit);
+        setStopped();
+        return stopped;
+    }
+}
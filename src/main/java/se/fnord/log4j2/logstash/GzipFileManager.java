@@ -0,0 +1,253 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses events into a file of gzip members, each of which holds a block of events.
+ *
+ * Events are encoded by the layout and fed straight to a reused {@link Deflater}, so that nothing is written
+ * uncompressed. A block ends when it has taken {@code blockSize} bytes of events, or {@code blockMillis} after it
+ * started, which a background thread checks for, and is mostly written to the file once it ends. If writing fails,
+ * the file is truncated back to the start of the block, so that it does not end in a partial member that readers
+ * stop at. Since every member can be decompressed on its own, the file can be read from the start of any member,
+ * and is a valid gzip file that ends with the last complete block after a crash.
+ */
+public class GzipFileManager extends AbstractManager {
+    private static final ManagerFactory<GzipFileManager, FactoryData> FACTORY = new GzipFileManagerFactory();
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, // Magic
+            Deflater.DEFLATED, // Compression method
+            0, // Flags
+            0, 0, 0, 0, // Modification time
+            0, // Extra flags
+            (byte) 255 // Unknown operating system
+    };
+    private static final int TRAILER_LENGTH = 8;
+
+    private final FileChannel channel;
+    private final ScheduledExecutorService blockTimer;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final GrowableByteDestination events = new GrowableByteDestination(8 * 1024);
+    private final byte[] output = new byte[64 * 1024];
+    private final int blockSize;
+    private final long blockMillis;
+    private int outputLength;
+    private int blockLength;
+    private long blockStartMillis;
+    private long blockStartPosition;
+    private long position;
+    private long blocks;
+
+    protected GzipFileManager(LoggerContext loggerContext, String name, FileChannel channel,
+            int compressionLevel, int blockSize, long blockMillis) throws IOException {
+        super(loggerContext, name);
+        this.channel = channel;
+        this.position = channel.size();
+        this.deflater = new Deflater(compressionLevel, true);
+        this.blockSize = blockSize;
+        this.blockMillis = blockMillis;
+        if (blockMillis > 0) {
+            this.blockTimer = Executors.newSingleThreadScheduledExecutor(
+                    Log4jThreadFactory.createDaemonThreadFactory("GzipFile"));
+            long period = Math.max(blockMillis / 4, 1);
+            blockTimer.scheduleWithFixedDelay(this::endExpiredBlock, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.blockTimer = null;
+        }
+    }
+
+    public static GzipFileManager getManager(String fileName, int compressionLevel, int blockSize,
+            long blockMillis) {
+        return getManager(fileName, FACTORY, new FactoryData(compressionLevel, blockSize, blockMillis));
+    }
+
+    /**
+     * @return the number of blocks written to the file
+     */
+    public synchronized long getBlocks() {
+        return blocks;
+    }
+
+    public synchronized void write(LogEvent event, Layout<?> layout) {
+        long now = System.currentTimeMillis();
+        try {
+            if (blockLength > 0 && blockMillis > 0 && now - blockStartMillis >= blockMillis) {
+                endBlock();
+            }
+            events.setLength(0);
+            int length = events.encode(event, layout);
+            if (blockLength == 0) {
+                blockStartMillis = now;
+                blockStartPosition = position;
+                System.arraycopy(HEADER, 0, output, outputLength, HEADER.length);
+                outputLength += HEADER.length;
+            }
+            crc.update(events.bytes(), 0, length);
+            deflater.setInput(events.bytes(), 0, length);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            blockLength += length;
+            if (blockLength >= blockSize) {
+                endBlock();
+            }
+        }
+        catch (IOException e) {
+            discardBlock();
+            throw new AppenderLoggingException("Unable to write to " + getName(), e);
+        }
+    }
+
+    public synchronized void flush() {
+        try {
+            if (blockLength > 0) {
+                endBlock();
+            }
+        }
+        catch (IOException e) {
+            discardBlock();
+            throw new AppenderLoggingException("Unable to write to " + getName(), e);
+        }
+    }
+
+    // Ends the block in progress once it is old enough, so that events are not held back while nothing is logged
+    private synchronized void endExpiredBlock() {
+        try {
+            if (blockLength > 0 && System.currentTimeMillis() - blockStartMillis >= blockMillis) {
+                endBlock();
+            }
+        }
+        catch (IOException e) {
+            discardBlock();
+            logError("Unable to write to " + getName(), e);
+        }
+    }
+
+    private void deflate() throws IOException {
+        if (outputLength == output.length) {
+            writeOutput();
+        }
+        outputLength += deflater.deflate(output, outputLength, output.length - outputLength, Deflater.NO_FLUSH);
+    }
+
+    private void endBlock() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (output.length - outputLength < TRAILER_LENGTH) {
+            writeOutput();
+        }
+        writeIntLE((int) crc.getValue());
+        writeIntLE(blockLength);
+        writeOutput();
+        resetBlock();
+        blocks++;
+    }
+
+    private void writeIntLE(int value) {
+        output[outputLength++] = (byte) value;
+        output[outputLength++] = (byte) (value >>> 8);
+        output[outputLength++] = (byte) (value >>> 16);
+        output[outputLength++] = (byte) (value >>> 24);
+    }
+
+    private void writeOutput() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(output, 0, outputLength);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+        outputLength = 0;
+    }
+
+    // What was written of a failed block is cut off, so that the file ends with the last complete member
+    private void discardBlock() {
+        outputLength = 0;
+        if (blockLength > 0 && position > blockStartPosition) {
+            try {
+                channel.truncate(blockStartPosition);
+                position = blockStartPosition;
+            }
+            catch (IOException e) {
+                logError("Unable to truncate " + getName() + " to its last complete block", e);
+            }
+        }
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        deflater.reset();
+        crc.reset();
+        blockLength = 0;
+    }
+
+    @Override
+    protected synchronized boolean releaseSub(long timeout, TimeUnit timeUnit) {
+        boolean stopped = true;
+        if (blockTimer != null) {
+            blockTimer.shutdownNow();
+        }
+        try {
+            if (blockLength > 0) {
+                endBlock();
+            }
+        }
+        catch (IOException e) {
+            logError("Unable to write to " + getName(), e);
+            discardBlock();
+            stopped = false;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            logError("Unable to close " + getName(), e);
+            stopped = false;
+        }
+        deflater.end();
+        return stopped;
+    }
+
+    private static final class FactoryData {
+        private final int compressionLevel;
+        private final int blockSize;
+        private final long blockMillis;
+
+        FactoryData(int compressionLevel, int blockSize, long blockMillis) {
+            this.compressionLevel = compressionLevel;
+            this.blockSize = blockSize;
+            this.blockMillis = blockMillis;
+        }
+    }
+
+    private static final class GzipFileManagerFactory implements ManagerFactory<GzipFileManager, FactoryData> {
+        @Override
+        public GzipFileManager createManager(String name, FactoryData data) {
+            try {
+                return new GzipFileManager(null, name, new FileOutputStream(name, true).getChannel(),
+                        data.compressionLevel, data.blockSize, data.blockMillis);
+            }
+            catch (IOException e) {
+                LOGGER.error("Unable to open {}", name, e);
+                return null;
+            }
+        }
+    }
+}
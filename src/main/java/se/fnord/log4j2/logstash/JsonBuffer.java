@@ -0,0 +1,469 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A growable byte buffer that JSON-escapes and UTF-8 encodes text as it is appended, so rendered events can be
+ * written to a {@link ByteBufferDestination} without an intermediate character buffer.
+ *
+ * Structure is appended with the {@code begin}/{@code end} methods rather than as punctuation, so that
+ * {@link CborBuffer} can render the same events in CBOR. Fields of an object are rendered as a field name
+ * ({@link #beginFieldName()}, the name, {@link #endFieldName()}) followed by a value; text values as
+ * {@link #beginString()}, any number of text appends, and {@link #endString()}.
+ */
+class JsonBuffer {
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    private static final byte[] MIN_LONG = "-9223372036854775808".getBytes(UTF_8);
+    private static final byte[] TRUE = "true".getBytes(UTF_8);
+    private static final byte[] FALSE = "false".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    // Text that needs no escaping, and is encoded the same in every format
+    private static final byte[] TRUNCATED = "...[truncated ".getBytes(UTF_8);
+    private static final byte[] TRUNCATED_END = " chars]".getBytes(UTF_8);
+
+    /**
+     * How each ASCII character is escaped within JSON strings, see {@link #appendUtf8(CharSequence, byte[])}.
+     */
+    static final byte[] JSON_ESCAPES = new byte[0x80];
+    /**
+     * Escapes nothing.
+     */
+    static final byte[] NO_ESCAPES = new byte[0x80];
+
+    static {
+        Arrays.fill(JSON_ESCAPES, 0, 0x20, (byte) 'u');
+        JSON_ESCAPES['\b'] = 'b';
+        JSON_ESCAPES['\t'] = 't';
+        JSON_ESCAPES['\n'] = 'n';
+        JSON_ESCAPES['\f'] = 'f';
+        JSON_ESCAPES['\r'] = 'r';
+        JSON_ESCAPES['"'] = '"';
+        JSON_ESCAPES['\\'] = '\\';
+    }
+
+    private final StringBuilder numberBuilder = new StringBuilder(32);
+    private byte[] bytes;
+    private int length;
+
+    JsonBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    final int length() {
+        return length;
+    }
+
+    final void setLength(int length) {
+        this.length = length;
+    }
+
+    final int capacity() {
+        return bytes.length;
+    }
+
+    final byte[] bytes() {
+        return bytes;
+    }
+
+    final JsonBuffer append(byte b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = b;
+        return this;
+    }
+
+    final JsonBuffer append(byte[] b) {
+        return append(b, 0, b.length);
+    }
+
+    final JsonBuffer append(byte[] b, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(b, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * @return a new, empty buffer of the same format
+     */
+    JsonBuffer newBuffer(int capacity) {
+        return new JsonBuffer(capacity);
+    }
+
+    Charset charset() {
+        return UTF_8;
+    }
+
+    /**
+     * @return the text encoded as it is when appended with {@link #appendEscaped(CharSequence)}
+     */
+    final byte[] encodeText(String s) {
+        return newBuffer(s.length())
+                .appendEscaped(s)
+                .toByteArray();
+    }
+
+    /**
+     * Begins an object. Every field of it, including the first, begins with a comma that is replaced with the
+     * opening brace by {@link #endObject(int)}.
+     *
+     * @return the position to pass to {@link #endObject(int)}
+     */
+    int beginObject() {
+        return length;
+    }
+
+    void endObject(int start) {
+        if (length == start) {
+            append((byte) '{');
+        } else {
+            bytes[start] = '{';
+        }
+        append((byte) '}');
+    }
+
+    JsonBuffer beginArray() {
+        return append((byte) '[');
+    }
+
+    /**
+     * Separates the elements of an array; appended before every element but the first.
+     */
+    JsonBuffer appendArraySeparator() {
+        return append((byte) ',');
+    }
+
+    JsonBuffer endArray() {
+        return append((byte) ']');
+    }
+
+    JsonBuffer beginFieldName() {
+        return append((byte) ',').append((byte) '"');
+    }
+
+    JsonBuffer endFieldName() {
+        return append((byte) '"').append((byte) ':');
+    }
+
+    JsonBuffer beginString() {
+        return append((byte) '"');
+    }
+
+    JsonBuffer endString() {
+        return append((byte) '"');
+    }
+
+    /**
+     * Appends what separates events, a newline.
+     */
+    void appendEventSeparator() {
+        append((byte) '\n');
+    }
+
+    JsonBuffer appendNull() {
+        return append(NULL);
+    }
+
+    JsonBuffer append(long value) {
+        return appendDecimal(value);
+    }
+
+    /**
+     * Appends the decimal digits of the value as text, for use within strings.
+     */
+    final JsonBuffer appendDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(MIN_LONG);
+        }
+        ensureCapacity(length + 20);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int end = length + digits(value);
+        int pos = end;
+        do {
+            bytes[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        length = end;
+        return this;
+    }
+
+    /**
+     * Appends the value as 16 lower case hexadecimal digits.
+     */
+    final JsonBuffer appendHex(long value) {
+        ensureCapacity(length + 16);
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            bytes[length++] = HEX[(int) (value >>> shift) & 0xf];
+        }
+        return this;
+    }
+
+    JsonBuffer append(double value) {
+        numberBuilder.setLength(0);
+        numberBuilder.append(value);
+        return appendAscii(numberBuilder);
+    }
+
+    // Rendered with the digits of the float, rather than of the double that it widens to
+    JsonBuffer append(float value) {
+        numberBuilder.setLength(0);
+        numberBuilder.append(value);
+        return appendAscii(numberBuilder);
+    }
+
+    JsonBuffer append(boolean value) {
+        return append(value ? TRUE : FALSE);
+    }
+
+    /**
+     * Appends the value as a JSON string, number, boolean or null, depending on its type. Integral and finite
+     * floating point numbers and booleans are appended as such, anything else as an escaped string.
+     */
+    final JsonBuffer appendValue(Object value) {
+        return appendValue(value, 0);
+    }
+
+    /**
+     * Appends the value like {@link #appendValue(Object)}, cutting text values, and the text of other objects, at
+     * {@code maxLength} characters like {@link #appendTruncated(CharSequence, int)}.
+     *
+     * @param maxLength the maximum number of characters of text, or {@code 0} for no limit
+     */
+    final JsonBuffer appendValue(Object value, int maxLength) {
+        if (value == null) {
+            return appendNull();
+        }
+        if (value instanceof CharSequence) {
+            return appendString((CharSequence) value, maxLength);
+        }
+        if (value instanceof Boolean) {
+            return append(((Boolean) value).booleanValue());
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return append(((Number) value).longValue());
+        }
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+                return append(d);
+            }
+        }
+        if (value instanceof Float) {
+            float f = (Float) value;
+            if (!Float.isNaN(f) && !Float.isInfinite(f)) {
+                return append(f);
+            }
+        }
+        return appendString(String.valueOf(value), maxLength);
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string.
+     */
+    final JsonBuffer appendString(CharSequence s) {
+        return beginString()
+                .appendEscaped(s)
+                .endString();
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string of at most {@code maxLength} characters of the text, like
+     * {@link #appendTruncated(CharSequence, int)}.
+     */
+    final JsonBuffer appendString(CharSequence s, int maxLength) {
+        return beginString()
+                .appendTruncated(s, maxLength)
+                .endString();
+    }
+
+    /**
+     * Appends text that is known to consist of ASCII characters that need no escaping.
+     */
+    final JsonBuffer appendAscii(CharSequence s) {
+        int count = s.length();
+        ensureCapacity(length + count);
+        for (int i = 0; i < count; i++) {
+            bytes[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the contents of a JSON string (without the surrounding quotes), escaping and UTF-8 encoding the text.
+     * Unpaired surrogates are replaced with {@code '?'}, like {@link String#getBytes(java.nio.charset.Charset)}.
+     */
+    JsonBuffer appendEscaped(CharSequence s) {
+        return appendUtf8(s, JSON_ESCAPES);
+    }
+
+    /**
+     * Appends the characters from {@code start} to {@code end} like {@link #appendEscaped(CharSequence)}.
+     */
+    JsonBuffer appendEscaped(CharSequence s, int start, int end) {
+        return appendUtf8(s, start, end, JSON_ESCAPES);
+    }
+
+    /**
+     * Appends the text like {@link #appendEscaped(CharSequence)}, cut after {@code maxLength} characters and followed
+     * by a {@code ...[truncated N chars]} marker if it is longer. Surrogate pairs are not split.
+     *
+     * @param maxLength the maximum number of characters to append, or {@code 0} for no limit
+     */
+    final JsonBuffer appendTruncated(CharSequence s, int maxLength) {
+        int count = s.length();
+        if (maxLength <= 0 || count <= maxLength) {
+            return appendEscaped(s);
+        }
+        int end = maxLength;
+        if (Character.isHighSurrogate(s.charAt(end - 1)) && Character.isLowSurrogate(s.charAt(end))) {
+            end--;
+        }
+        return appendEscaped(s, 0, end)
+                .append(TRUNCATED)
+                .appendDecimal(count - end)
+                .append(TRUNCATED_END);
+    }
+
+    /**
+     * Appends the text UTF-8 encoded, escaping the ASCII characters that have a non-zero entry in {@code escapes}:
+     * {@code 'u'} for a {@code \\u00XX} escape, and anything else for that character after a backslash.
+     *
+     * Runs of ASCII characters that need no escaping are copied in a tight loop, with room made for the rest of the
+     * text up front, so that text that is all ASCII is appended in a single pass.
+     */
+    final JsonBuffer appendUtf8(CharSequence s, byte[] escapes) {
+        return appendUtf8(s, 0, s.length(), escapes);
+    }
+
+    final JsonBuffer appendUtf8(CharSequence s, int start, int end, byte[] escapes) {
+        int i = appendPlain(s, start, end, escapes);
+        while (i < end) {
+            char c = s.charAt(i++);
+            if (c < 0x80) {
+                appendEscape(c, escapes[c]);
+            } else if (c < 0x800) {
+                ensureCapacity(length + 2);
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(s.charAt(i))) {
+                int cp = Character.toCodePoint(c, s.charAt(i++));
+                ensureCapacity(length + 4);
+                bytes[length++] = (byte) (0xf0 | (cp >> 18));
+                bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                append((byte) '?');
+            } else {
+                ensureCapacity(length + 3);
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+            i = appendPlain(s, i, end, escapes);
+        }
+        return this;
+    }
+
+    /**
+     * Copies characters from {@code from} up to the first one that is not ASCII or needs escaping.
+     *
+     * @return the index of that character, or {@code to} if there is none
+     */
+    private int appendPlain(CharSequence s, int from, int to, byte[] escapes) {
+        ensureCapacity(length + to - from);
+        byte[] b = bytes;
+        int n = length;
+        int i = from;
+        // Strings get a loop of their own, where charAt() needs no type check
+        if (s instanceof String) {
+            String string = (String) s;
+            for (char c; i < to && (c = string.charAt(i)) < 0x80 && escapes[c] == 0; i++) {
+                b[n++] = (byte) c;
+            }
+        } else {
+            for (char c; i < to && (c = s.charAt(i)) < 0x80 && escapes[c] == 0; i++) {
+                b[n++] = (byte) c;
+            }
+        }
+        length = n;
+        return i;
+    }
+
+    private void appendEscape(char c, byte escape) {
+        if (escape == 0) {
+            append((byte) c);
+        } else if (escape == 'u') {
+            ensureCapacity(length + 6);
+            bytes[length++] = '\\';
+            bytes[length++] = 'u';
+            bytes[length++] = '0';
+            bytes[length++] = '0';
+            bytes[length++] = HEX[c >> 4];
+            bytes[length++] = HEX[c & 0xf];
+        } else {
+            ensureCapacity(length + 2);
+            bytes[length++] = '\\';
+            bytes[length++] = escape;
+        }
+    }
+
+    final void writeTo(ByteBufferDestination destination) {
+        destination.writeBytes(bytes, 0, length);
+    }
+
+    final byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * @return a copy of the bytes appended since {@code from}
+     */
+    final byte[] toByteArray(int from) {
+        return Arrays.copyOfRange(bytes, from, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, charset());
+    }
+
+    /**
+     * Shrinks the buffer back to {@code maxSize} if it has grown past it, like
+     * {@link org.apache.logging.log4j.util.StringBuilders#trimToMaxSize(StringBuilder, int)}.
+     *
+     * @return whether the buffer was shrunk
+     */
+    final boolean trimToMaxSize(int maxSize) {
+        if (bytes.length > maxSize) {
+            length = 0;
+            bytes = new byte[maxSize];
+            return true;
+        }
+        return false;
+    }
+
+    final void ensureCapacity(int minCapacity) {
+        if (minCapacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length * 2));
+        }
+    }
+
+    private static int digits(long value) {
+        long limit = 10;
+        for (int i = 1; i < 19; i++) {
+            if (value < limit) {
+                return i;
+            }
+            limit *= 10;
+        }
+        return 19;
+    }
+}
@@ -0,0 +1,284 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.NullConfiguration;
+import org.apache.logging.log4j.core.jmx.Server;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectArrayMessage;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+import se.fnord.taggedmessage.TaggedMessage;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the events a layout encodes, the bytes of the parts of the events and the time spent encoding them.
+ *
+ * The counters are {@link LongAdder}s, which are striped over threads under contention, so that counting does not
+ * become a point of contention itself. Encoding times are counted in buckets of powers of two nanoseconds, from below
+ * a microsecond to above 16 milliseconds.
+ */
+final class LayoutMetrics implements LayoutMetricsMXBean {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final String DOMAIN = "org.apache.logging.log4j2";
+    private static final int FIRST_BUCKET_BITS = 10;
+    private static final int BUCKETS = 16;
+
+    enum MessageType {
+        SIMPLE, PARAMETERIZED, TAGGED, MAP, OBJECT_ARRAY, OTHER
+    }
+
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    // The metrics registered by name, and so the configuration of the layout that registered each
+    private static final Map<ObjectName, LayoutMetrics> REGISTERED = new HashMap<>();
+
+    private final LongAdder[] eventsByMessageType = newAdders(MESSAGE_TYPES.length);
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder messageBytes = new LongAdder();
+    private final LongAdder stackTraceBytes = new LongAdder();
+    private final LongAdder contextBytes = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder[] encodeNanosHistogram = newAdders(BUCKETS);
+    private final LongAdder bufferTrims = new LongAdder();
+    private final PropertyChangeListener configurationListener = this::configurationChanged;
+    // Guarded by REGISTERED
+    private ObjectName objectName;
+    private Configuration configuration;
+    private LoggerContext loggerContext;
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static MessageType messageType(Message message) {
+        if (message instanceof TaggedMessage) {
+            return MessageType.TAGGED;
+        }
+        if (message instanceof MapMessage) {
+            return MessageType.MAP;
+        }
+        if (message instanceof ObjectArrayMessage) {
+            return MessageType.OBJECT_ARRAY;
+        }
+        if (message instanceof CharSequence) {
+            return MessageType.SIMPLE;
+        }
+        if (LogstashLayoutV1.isParameterized(message)) {
+            return MessageType.PARAMETERIZED;
+        }
+        // Like the mutable log events of asynchronous loggers, when the copied message had no parameters
+        if (message instanceof ReusableMessage && ((ReusableMessage) message).getParameterCount() == 0) {
+            return MessageType.SIMPLE;
+        }
+        return MessageType.OTHER;
+    }
+
+    void recordEvent(Message message, int bytes, long nanos) {
+        eventsByMessageType[messageType(message).ordinal()].increment();
+        bytesEncoded.add(bytes);
+        encodeNanos.add(nanos);
+        encodeNanosHistogram[bucket(nanos)].increment();
+    }
+
+    void recordBufferTrim() {
+        bufferTrims.increment();
+    }
+
+    private static int bucket(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(nanos);
+        return Math.min(Math.max(bits - FIRST_BUCKET_BITS, 0), BUCKETS - 1);
+    }
+
+    FieldWriter measureMessage(FieldWriter writer) {
+        return measure(writer, messageBytes);
+    }
+
+    FieldWriter measureStackTrace(FieldWriter writer) {
+        return measure(writer, stackTraceBytes);
+    }
+
+    FieldWriter measureContext(FieldWriter writer) {
+        return measure(writer, contextBytes);
+    }
+
+    private static FieldWriter measure(FieldWriter writer, LongAdder bytes) {
+        return (event, buffers) -> {
+            int start = buffers.json.length();
+            writer.write(event, buffers);
+            bytes.add(buffers.json.length() - start);
+        };
+    }
+
+    @Override
+    public long getEventsEncoded() {
+        long events = 0;
+        for (LongAdder adder : eventsByMessageType) {
+            events += adder.sum();
+        }
+        return events;
+    }
+
+    @Override
+    public Map<String, Long> getEventsByMessageType() {
+        Map<String, Long> events = new LinkedHashMap<>();
+        for (MessageType type : MESSAGE_TYPES) {
+            events.put(type.name(), eventsByMessageType[type.ordinal()].sum());
+        }
+        return events;
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return bytesEncoded.sum();
+    }
+
+    @Override
+    public long getMessageBytes() {
+        return messageBytes.sum();
+    }
+
+    @Override
+    public long getStackTraceBytes() {
+        return stackTraceBytes.sum();
+    }
+
+    @Override
+    public long getContextBytes() {
+        return contextBytes.sum();
+    }
+
+    @Override
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    @Override
+    public long[] getEncodeNanosHistogramBounds() {
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << (FIRST_BUCKET_BITS + i);
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    @Override
+    public long[] getEncodeNanosHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = encodeNanosHistogram[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBufferTrims() {
+        return bufferTrims.sum();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, next to the MBeans of the logger context, unless JMX is
+     * disabled for log4j. Metrics registered under the same name by the layout of an earlier configuration, which a
+     * reconfiguration is replacing, are unregistered first; metrics of another layout of the same configuration are
+     * not, and these are not registered. The metrics are unregistered when the configuration is replaced or the
+     * logger context stops.
+     */
+    void register(LoggerContext loggerContext, Configuration configuration, String name) {
+        if (loggerContext == null || PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+            return;
+        }
+        synchronized (REGISTERED) {
+            try {
+                ObjectName objectName = objectName(loggerContext.getName(), name);
+                LayoutMetrics registered = REGISTERED.get(objectName);
+                if (registered != null && registered.configuration == configuration) {
+                    LOGGER.error("Layout metrics named {} are already registered for logger context {}; give the "
+                            + "layout a metricsName of its own", name, loggerContext.getName());
+                    return;
+                }
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                if (mbs.isRegistered(objectName)) {
+                    mbs.unregisterMBean(objectName);
+                }
+                mbs.registerMBean(new StandardMBean(this, LayoutMetricsMXBean.class, true), objectName);
+                REGISTERED.put(objectName, this);
+                this.objectName = objectName;
+                this.configuration = configuration;
+                this.loggerContext = loggerContext;
+            }
+            catch (JMException | RuntimeException e) {
+                LOGGER.error("Could not register layout metrics {} of logger context {}", name,
+                        loggerContext.getName(), e);
+                return;
+            }
+        }
+        loggerContext.addPropertyChangeListener(configurationListener);
+    }
+
+    // A stopping logger context replaces its configuration with a NullConfiguration
+    private void configurationChanged(PropertyChangeEvent event) {
+        if (!LoggerContext.PROPERTY_CONFIG.equals(event.getPropertyName())) {
+            return;
+        }
+        boolean replaced;
+        synchronized (REGISTERED) {
+            replaced = event.getOldValue() == configuration || event.getNewValue() instanceof NullConfiguration;
+        }
+        if (replaced) {
+            unregister();
+        }
+    }
+
+    /**
+     * Unregisters the metrics, unless other metrics have been registered under the same name since.
+     */
+    void unregister() {
+        LoggerContext registeredContext;
+        synchronized (REGISTERED) {
+            if (objectName == null) {
+                return;
+            }
+            if (REGISTERED.remove(objectName, this)) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                }
+                catch (InstanceNotFoundException e) {
+                    // Unregistered with the logger context
+                }
+                catch (JMException | RuntimeException e) {
+                    LOGGER.error("Could not unregister layout metrics {}", objectName, e);
+                }
+            }
+            registeredContext = loggerContext;
+            objectName = null;
+            configuration = null;
+            loggerContext = null;
+        }
+        registeredContext.removePropertyChangeListener(configurationListener);
+    }
+
+    static ObjectName objectName(String contextName, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + Server.escape(contextName) + ",component=Layouts,name="
+                + Server.escape(name));
+    }
+}
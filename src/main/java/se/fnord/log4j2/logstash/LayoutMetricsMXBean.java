@@ -0,0 +1,60 @@
+package se.fnord.log4j2.logstash;
+
+import java.util.Map;
+
+/**
+ * The cost of encoding events with a {@link LogstashLayoutV1}, as counted since the layout was created.
+ */
+public interface LayoutMetricsMXBean {
+    /**
+     * @return the number of events encoded
+     */
+    long getEventsEncoded();
+
+    /**
+     * @return the number of events encoded, by the kind of message: {@code SIMPLE}, {@code PARAMETERIZED},
+     *         {@code TAGGED}, {@code MAP}, {@code OBJECT_ARRAY} or {@code OTHER}
+     */
+    Map<String, Long> getEventsByMessageType();
+
+    /**
+     * @return the number of bytes of encoded events
+     */
+    long getBytesEncoded();
+
+    /**
+     * @return the number of bytes of message fields: the message, its template and parameters, and the fields of
+     *         tagged and structured messages
+     */
+    long getMessageBytes();
+
+    /**
+     * @return the number of bytes of stack trace fields, including stack hashes
+     */
+    long getStackTraceBytes();
+
+    /**
+     * @return the number of bytes of thread context fields
+     */
+    long getContextBytes();
+
+    /**
+     * @return the total time spent encoding events, in nanoseconds
+     */
+    long getEncodeNanos();
+
+    /**
+     * @return the exclusive upper bounds, in nanoseconds, of the buckets of {@link #getEncodeNanosHistogram()}
+     */
+    long[] getEncodeNanosHistogramBounds();
+
+    /**
+     * @return the number of events encoded within the time of each bucket, and above the bound of the one before
+     */
+    long[] getEncodeNanosHistogram();
+
+    /**
+     * @return the number of times the buffers of a thread grew past their maximum size and were replaced
+     */
+    long getBufferTrims();
+}
@@ -4,60 +4,96 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.StringLayout;
-import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.layout.AbstractLayout;
 import org.apache.logging.log4j.core.layout.ByteBufferDestination;
-import org.apache.logging.log4j.core.layout.StringBuilderEncoder;
+import org.apache.logging.log4j.core.lookup.Interpolator;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
 import org.apache.logging.log4j.core.net.Severity;
-import org.apache.logging.log4j.core.pattern.DatePatternConverter;
 import org.apache.logging.log4j.core.util.JsonUtils;
+import org.apache.logging.log4j.core.util.KeyValuePair;
 import org.apache.logging.log4j.core.util.NetUtils;
-import org.apache.logging.log4j.core.util.StringBuilderWriter;
+import org.apache.logging.log4j.message.MapMessage;
 import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectArrayMessage;
+import org.apache.logging.log4j.message.ParameterConsumer;
+import org.apache.logging.log4j.message.ParameterVisitable;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessage;
 import org.apache.logging.log4j.util.StringBuilderFormattable;
-import org.apache.logging.log4j.util.StringBuilders;
 import org.apache.logging.log4j.util.Strings;
 import se.fnord.taggedmessage.TagConsumer;
 import se.fnord.taggedmessage.TaggedMessage;
 
-import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 @Plugin(name = "LogstashLayoutV1", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE)
 public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLayout, TagConsumer<StringBuilder> {
-    private static final char C = ',';
-    private static final char Q = '\"';
-    private static final String QC = "\",";
-    private static final String CQ = ",\"";
-    private static final String CQU = ",\"_";
+    private static final int VERSION = 1;
 
     private static final int DEFAULT_STRING_BUILDER_SIZE = 1024;
 
     private static final int MAX_STRING_BUILDER_SIZE = Math.max(DEFAULT_STRING_BUILDER_SIZE,
             Integer.getInteger("log4j.layoutStringBuilder.maxSize",2 * 1024));
 
-    private static final ThreadLocal<StringBuilder[]> stringBuilders = ThreadLocal.withInitial(
-            () -> new StringBuilder[] {
-                new StringBuilder(DEFAULT_STRING_BUILDER_SIZE),
-                new StringBuilder(DEFAULT_STRING_BUILDER_SIZE)
-            });
-
-    private static DatePatternConverter DATE_FORMATTER = DatePatternConverter.newInstance(
-            new String[]{"ISO8601_PERIOD", "UTC"});
-
-    private final boolean includeStacktrace;
-    private final boolean includeThreadContext;
-    private final boolean includeTimestamp;
-    private final String objectHeader;
-    private final StringBuilderEncoder encoder;
+    // Batches are written in chunks of half this size, so that the buffer is not trimmed between batches
+    private static final int MAX_BATCH_SIZE = Math.max(2 * MAX_STRING_BUILDER_SIZE, 64 * 1024);
+
+    private static final EncodingBuffersSource jsonEncodingBuffers = EncodingBuffersSource.threadLocal(
+            () -> new EncodingBuffers(OutputFormat.JSON, DEFAULT_STRING_BUILDER_SIZE));
+
+    private static final EncodingBuffersSource cborEncodingBuffers = EncodingBuffersSource.threadLocal(
+            () -> new EncodingBuffers(OutputFormat.CBOR, DEFAULT_STRING_BUILDER_SIZE));
+
+    private final OutputFormat format;
+    private final EncodingBuffersSource encodingBuffers;
+    private final FieldWriter[] fieldPlan;
+    private final byte[] staticFields;
+    private final byte[][] dynamicFieldNames;
+    private final String[] dynamicFieldValues;
+    private final StrSubstitutor strSubstitutor;
+    private final byte[] timestampField;
+    private final byte[] levelField;
+    private final byte[] levelValueField;
+    private final byte[] threadNameField;
+    private final byte[] loggerNameField;
+    private final byte[] stackHashField;
+    private final byte[] stackTraceField;
+    private final byte[] stackTraceSuppressedField;
+    private final byte[] exceptionClassField;
+    private final byte[] exceptionMessageField;
+    private final byte[] rootCauseClassField;
+    private final byte[] rootCauseMessageField;
+    private final byte[] framesField;
+    private final byte[] messageField;
+    private final byte[] messageTemplateField;
+    private final byte[] messageParamsField;
+    private final TimestampRenderer timestampRenderer;
+    private final FragmentCache<StackTraceElement> stackFrameCache;
+    private final StackTraceSuppression stackTraceSuppression;
+    private final FragmentCache<String> loggerNameCache;
+    private final FragmentCache<String> threadNameCache;
+    private final FragmentCache<String> exceptionClassCache;
+    private final ContextDataWriter contextDataWriter;
+    private final boolean includeFormattedMessage;
+    private final int maxMessageLength;
+    private final int maxStackTraceFrames;
+    private final int maxStackTraceDepth;
+    private final int throwableFrames;
+    private final String[] excludedFramePackages;
+    private final ContextDataWriter mapMessageWriter;
+    private final TagConsumer<JsonBuffer> tagConsumer;
+    private final ParameterConsumer<EncodingBuffers> parameterConsumer = this::appendParameter;
+    private final LayoutMetrics metrics;
 
     public static class Builder<B extends Builder<B>> extends AbstractLayout.Builder<B>
             implements org.apache.logging.log4j.core.util.Builder<LogstashLayoutV1> {
@@ -74,15 +110,94 @@ public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLa
         @PluginBuilderAttribute
         private boolean includeTimestamp = true;
 
+        @PluginBuilderAttribute
+        private TimestampPrecision timestampPrecision = TimestampPrecision.MILLISECONDS;
+
+        @PluginBuilderAttribute
+        private int stackFrameCacheSize;
+
+        @PluginBuilderAttribute
+        private boolean includeStackHash;
+
+        @PluginBuilderAttribute
+        private long stackTraceSuppressionWindow;
+
+        @PluginBuilderAttribute
+        private int stackTraceSuppressionRenderEvery;
+
+        @PluginBuilderAttribute
+        private boolean structuredThrowables;
+
+        @PluginBuilderAttribute
+        private int throwableFrames;
+
+        @PluginBuilderAttribute
+        private String excludedFramePackages;
+
+        @PluginBuilderAttribute
+        private int nameCacheSize = 256;
+
+        @PluginBuilderAttribute
+        private boolean typedContextValues;
+
+        @PluginBuilderAttribute
+        private boolean reuseRenderedThreadContext;
+
+        @PluginBuilderAttribute
+        private boolean includeMessageTemplate;
+
+        @PluginBuilderAttribute
+        private boolean includeFormattedMessage = true;
+
+        @PluginBuilderAttribute
+        private boolean structuredMessages;
+
+        @PluginBuilderAttribute
+        private boolean batchEncoding;
+
+        @PluginBuilderAttribute
+        private BufferPool bufferPool = BufferPool.THREAD_LOCAL;
+
+        @PluginBuilderAttribute
+        private int bufferPoolSize = 4 * Runtime.getRuntime().availableProcessors();
+
+        @PluginBuilderAttribute
+        private FieldNames fieldNames = FieldNames.LOGSTASH;
+
+        @PluginBuilderAttribute
+        private OutputFormat format = OutputFormat.JSON;
+
+        @PluginBuilderAttribute
+        private int maxMessageLength;
+
+        @PluginBuilderAttribute
+        private int maxStackTraceFrames;
+
+        @PluginBuilderAttribute
+        private int maxStackTraceDepth;
+
+        @PluginBuilderAttribute
+        private int maxContextValueLength;
+
+        @PluginBuilderAttribute
+        private boolean metrics;
+
+        @PluginBuilderAttribute
+        private String metricsName = "LogstashLayoutV1";
+
+        @PluginElement("FieldName")
+        private FieldName[] fields;
+
+        @PluginElement("AdditionalField")
+        private KeyValuePair[] additionalFields;
+
         public Builder() {
             super();
         }
 
         @Override
         public LogstashLayoutV1 build() {
-            return new LogstashLayoutV1(getConfiguration(),
-                    host != null ? host : NetUtils.getLocalHostname(),
-                    includeStacktrace, includeThreadContext, includeTimestamp);
+            return new LogstashLayoutV1(this);
         }
 
         public String getHost() {
@@ -101,6 +216,115 @@ public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLa
             return includeTimestamp;
         }
 
+        public TimestampPrecision getTimestampPrecision() {
+            return timestampPrecision;
+        }
+
+        public int getStackFrameCacheSize() {
+            return stackFrameCacheSize;
+        }
+
+        public boolean isIncludeStackHash() {
+            return includeStackHash;
+        }
+
+        public long getStackTraceSuppressionWindow() {
+            return stackTraceSuppressionWindow;
+        }
+
+        public int getStackTraceSuppressionRenderEvery() {
+            return stackTraceSuppressionRenderEvery;
+        }
+
+        public boolean isStructuredThrowables() {
+            return structuredThrowables;
+        }
+
+        public int getThrowableFrames() {
+            return throwableFrames;
+        }
+
+        public String getExcludedFramePackages() {
+            return excludedFramePackages;
+        }
+
+        public int getNameCacheSize() {
+            return nameCacheSize;
+        }
+
+        public boolean isTypedContextValues() {
+            return typedContextValues;
+        }
+
+        public boolean isReuseRenderedThreadContext() {
+            return reuseRenderedThreadContext;
+        }
+
+        public boolean isIncludeMessageTemplate() {
+            return includeMessageTemplate;
+        }
+
+        public boolean isIncludeFormattedMessage() {
+            return includeFormattedMessage;
+        }
+
+        public boolean isStructuredMessages() {
+            return structuredMessages;
+        }
+
+        @Deprecated
+        public boolean isBatchEncoding() {
+            return batchEncoding;
+        }
+
+        public BufferPool getBufferPool() {
+            return bufferPool;
+        }
+
+        public int getBufferPoolSize() {
+            return bufferPoolSize;
+        }
+
+        public FieldNames getFieldNames() {
+            return fieldNames;
+        }
+
+        public OutputFormat getFormat() {
+            return format;
+        }
+
+        public int getMaxMessageLength() {
+            return maxMessageLength;
+        }
+
+        public int getMaxStackTraceFrames() {
+            return maxStackTraceFrames;
+        }
+
+        public int getMaxStackTraceDepth() {
+            return maxStackTraceDepth;
+        }
+
+        public int getMaxContextValueLength() {
+            return maxContextValueLength;
+        }
+
+        public boolean isMetrics() {
+            return metrics;
+        }
+
+        public String getMetricsName() {
+            return metricsName;
+        }
+
+        public FieldName[] getFields() {
+            return fields;
+        }
+
+        public KeyValuePair[] getAdditionalFields() {
+            return additionalFields;
+        }
+
         public B setHost(String host) {
             this.host = host;
             return asBuilder();
@@ -120,15 +344,427 @@ public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLa
             this.includeTimestamp = includeTimestamp;
             return asBuilder();
         }
+
+        public B setTimestampPrecision(TimestampPrecision timestampPrecision) {
+            this.timestampPrecision = timestampPrecision;
+            return asBuilder();
+        }
+
+        public B setStackFrameCacheSize(int stackFrameCacheSize) {
+            this.stackFrameCacheSize = stackFrameCacheSize;
+            return asBuilder();
+        }
+
+        public B setIncludeStackHash(boolean includeStackHash) {
+            this.includeStackHash = includeStackHash;
+            return asBuilder();
+        }
+
+        /**
+         * @param stackTraceSuppressionWindow the window, in milliseconds, within which repeated stack traces are
+         *                                    suppressed, or 0 to always render stack traces
+         */
+        public B setStackTraceSuppressionWindow(long stackTraceSuppressionWindow) {
+            this.stackTraceSuppressionWindow = stackTraceSuppressionWindow;
+            return asBuilder();
+        }
+
+        /**
+         * @param stackTraceSuppressionRenderEvery render every Nth occurrence of a repeated stack trace within the
+         *                                         suppression window, or only the first if 0
+         */
+        public B setStackTraceSuppressionRenderEvery(int stackTraceSuppressionRenderEvery) {
+            this.stackTraceSuppressionRenderEvery = stackTraceSuppressionRenderEvery;
+            return asBuilder();
+        }
+
+        /**
+         * @param structuredThrowables render the class and message of logged exceptions and of their root causes as
+         *                             fields of their own
+         */
+        public B setStructuredThrowables(boolean structuredThrowables) {
+            this.structuredThrowables = structuredThrowables;
+            return asBuilder();
+        }
+
+        /**
+         * @param throwableFrames the maximum number of frames of logged exceptions to render in the {@code frames}
+         *                        array with structured throwables, or 0 to leave it out
+         */
+        public B setThrowableFrames(int throwableFrames) {
+            this.throwableFrames = throwableFrames;
+            return asBuilder();
+        }
+
+        /**
+         * @param excludedFramePackages comma separated prefixes of the classes whose frames are left out of the
+         *                              {@code frames} array
+         */
+        public B setExcludedFramePackages(String excludedFramePackages) {
+            this.excludedFramePackages = excludedFramePackages;
+            return asBuilder();
+        }
+
+        /**
+         * @param nameCacheSize the maximum number of escaped logger names, thread names, thread context keys and
+         *                      exception class names to cache, each, or 0 to disable the caches
+         */
+        public B setNameCacheSize(int nameCacheSize) {
+            this.nameCacheSize = nameCacheSize;
+            return asBuilder();
+        }
+
+        /**
+         * @param typedContextValues render numeric and boolean thread context values as JSON numbers and booleans,
+         *                           rather than as strings
+         */
+        public B setTypedContextValues(boolean typedContextValues) {
+            this.typedContextValues = typedContextValues;
+            return asBuilder();
+        }
+
+        /**
+         * @param reuseRenderedThreadContext remember the last rendered thread context on each thread, and reuse it
+         *                                   as long as the context is unchanged
+         */
+        public B setReuseRenderedThreadContext(boolean reuseRenderedThreadContext) {
+            this.reuseRenderedThreadContext = reuseRenderedThreadContext;
+            return asBuilder();
+        }
+
+        /**
+         * @param includeMessageTemplate render the template and the parameters of parameterized messages in the
+         *                               {@code message_template} and {@code message_params} fields
+         */
+        public B setIncludeMessageTemplate(boolean includeMessageTemplate) {
+            this.includeMessageTemplate = includeMessageTemplate;
+            return asBuilder();
+        }
+
+        /**
+         * @param includeFormattedMessage render the formatted {@code message} of messages that are rendered with a
+         *                                {@code message_template}; other messages are always formatted
+         */
+        public B setIncludeFormattedMessage(boolean includeFormattedMessage) {
+            this.includeFormattedMessage = includeFormattedMessage;
+            return asBuilder();
+        }
+
+        /**
+         * @param structuredMessages render the entries of map messages as fields, and the parameters of object array
+         *                           messages as {@code message_params}, rather than formatting them
+         */
+        public B setStructuredMessages(boolean structuredMessages) {
+            this.structuredMessages = structuredMessages;
+            return asBuilder();
+        }
+
+        /**
+         * @param batchEncoding ignored; every event is written to the destination before {@code encode} returns
+         * @deprecated holding encoded events until the end of a batch lost them when nothing ended the batch; batches
+         *             are encoded with {@link LogstashLayoutV1#encode(List, ByteBufferDestination)}, and output stream
+         *             appenders without {@code immediateFlush} already write a batch at its end
+         */
+        @Deprecated
+        public B setBatchEncoding(boolean batchEncoding) {
+            this.batchEncoding = batchEncoding;
+            return asBuilder();
+        }
+
+        /**
+         * @param bufferPool how threads get the buffers events are rendered with
+         */
+        public B setBufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return asBuilder();
+        }
+
+        /**
+         * @param bufferPoolSize the number of buffers kept for reuse when they are pooled
+         */
+        public B setBufferPoolSize(int bufferPoolSize) {
+            this.bufferPoolSize = bufferPoolSize;
+            return asBuilder();
+        }
+
+        /**
+         * @param fieldNames the preset of default field names
+         */
+        public B setFieldNames(FieldNames fieldNames) {
+            this.fieldNames = fieldNames;
+            return asBuilder();
+        }
+
+        /**
+         * @param format the encoding of rendered events
+         */
+        public B setFormat(OutputFormat format) {
+            this.format = format;
+            return asBuilder();
+        }
+
+        /**
+         * @param maxMessageLength the maximum number of characters of the message, the message template and
+         *                         parameters, the values of structured and tagged messages and the messages of the
+         *                         exceptions in stack traces, after which they are truncated, or 0 for no limit
+         */
+        public B setMaxMessageLength(int maxMessageLength) {
+            this.maxMessageLength = maxMessageLength;
+            return asBuilder();
+        }
+
+        /**
+         * @param maxStackTraceFrames the maximum number of frames rendered of each throwable in a stack trace, or 0
+         *                            for no limit
+         */
+        public B setMaxStackTraceFrames(int maxStackTraceFrames) {
+            this.maxStackTraceFrames = maxStackTraceFrames;
+            return asBuilder();
+        }
+
+        /**
+         * @param maxStackTraceDepth the maximum depth of causes and suppressed exceptions rendered in a stack trace,
+         *                           or 0 for no limit
+         */
+        public B setMaxStackTraceDepth(int maxStackTraceDepth) {
+            this.maxStackTraceDepth = maxStackTraceDepth;
+            return asBuilder();
+        }
+
+        /**
+         * @param maxContextValueLength the maximum number of characters of thread context values, after which they
+         *                              are truncated, or 0 for no limit
+         */
+        public B setMaxContextValueLength(int maxContextValueLength) {
+            this.maxContextValueLength = maxContextValueLength;
+            return asBuilder();
+        }
+
+        /**
+         * @param metrics count the events encoded, their size and the time spent encoding them, and register the
+         *                counts as an MBean of the logger context
+         */
+        public B setMetrics(boolean metrics) {
+            this.metrics = metrics;
+            return asBuilder();
+        }
+
+        /**
+         * @param metricsName the name the metrics are registered under, which tells the layouts of a logger context
+         *                    apart; metrics of a second layout of the same configuration with the same name are not
+         *                    registered
+         */
+        public B setMetricsName(String metricsName) {
+            this.metricsName = metricsName;
+            return asBuilder();
+        }
+
+        /**
+         * @param fields fields to rename or leave out, overriding the preset
+         */
+        public B setFields(FieldName... fields) {
+            this.fields = fields;
+            return asBuilder();
+        }
+
+        /**
+         * @param additionalFields fields to add to every event; values with lookups are resolved per event
+         */
+        public B setAdditionalFields(KeyValuePair... additionalFields) {
+            this.additionalFields = additionalFields;
+            return asBuilder();
+        }
+    }
+
+    private LogstashLayoutV1(Builder<?> builder) {
+        super(builder.getConfiguration(), null, null);
+        this.format = builder.format != null ? builder.format : OutputFormat.JSON;
+        this.encodingBuffers = encodingBuffersSource(format, builder.bufferPool, builder.bufferPoolSize);
+        Map<Field, String> names = resolveFieldNames(
+                builder.fieldNames != null ? builder.fieldNames : FieldNames.LOGSTASH, builder.fields);
+        if (!builder.includeTimestamp) {
+            names.remove(Field.TIMESTAMP);
+        }
+        if (!builder.includeStacktrace) {
+            names.remove(Field.STACK_TRACE);
+        }
+        if (!builder.includeMessageTemplate) {
+            names.remove(Field.MESSAGE_TEMPLATE);
+        }
+        if (!builder.structuredThrowables) {
+            names.remove(Field.EXCEPTION_CLASS);
+            names.remove(Field.EXCEPTION_MESSAGE);
+            names.remove(Field.ROOT_CAUSE_CLASS);
+            names.remove(Field.ROOT_CAUSE_MESSAGE);
+        }
+        if (!builder.structuredThrowables || builder.throwableFrames <= 0) {
+            names.remove(Field.FRAMES);
+        }
+
+        KeyValuePair[] additionalFields = builder.additionalFields != null
+                ? builder.additionalFields : new KeyValuePair[0];
+        this.staticFields = renderStaticFields(format, names,
+                builder.host != null ? builder.host : NetUtils.getLocalHostname(), additionalFields);
+        List<byte[]> dynamicFieldNames = new ArrayList<>();
+        List<String> dynamicFieldValues = new ArrayList<>();
+        for (KeyValuePair field : additionalFields) {
+            if (needsLookup(field.getValue())) {
+                dynamicFieldNames.add(renderFieldName(format, field.getKey()));
+                dynamicFieldValues.add(field.getValue());
+            }
+        }
+        this.dynamicFieldNames = dynamicFieldNames.toArray(new byte[0][]);
+        this.dynamicFieldValues = dynamicFieldValues.toArray(new String[0]);
+        this.strSubstitutor = builder.getConfiguration() != null
+                ? builder.getConfiguration().getStrSubstitutor()
+                : new StrSubstitutor(new Interpolator());
+        this.timestampField = renderFieldName(format, names.get(Field.TIMESTAMP));
+        this.levelField = renderFieldName(format, names.get(Field.LEVEL));
+        this.levelValueField = renderFieldName(format, names.get(Field.LEVEL_VALUE));
+        this.threadNameField = renderFieldName(format, names.get(Field.THREAD_NAME));
+        this.loggerNameField = renderFieldName(format, names.get(Field.LOGGER_NAME));
+        this.stackTraceField = renderFieldName(format, names.get(Field.STACK_TRACE));
+        this.stackTraceSuppressedField = renderFieldName(format, names.get(Field.STACK_TRACE_SUPPRESSED));
+        this.exceptionClassField = renderFieldName(format, names.get(Field.EXCEPTION_CLASS));
+        this.exceptionMessageField = renderFieldName(format, names.get(Field.EXCEPTION_MESSAGE));
+        this.rootCauseClassField = renderFieldName(format, names.get(Field.ROOT_CAUSE_CLASS));
+        this.rootCauseMessageField = renderFieldName(format, names.get(Field.ROOT_CAUSE_MESSAGE));
+        this.framesField = renderFieldName(format, names.get(Field.FRAMES));
+        this.messageField = renderFieldName(format, names.get(Field.MESSAGE));
+        this.messageTemplateField = renderFieldName(format, names.get(Field.MESSAGE_TEMPLATE));
+        this.messageParamsField = renderFieldName(format, names.get(Field.MESSAGE_PARAMS));
+
+        this.timestampRenderer = new TimestampRenderer(
+                builder.timestampPrecision != null ? builder.timestampPrecision : TimestampPrecision.MILLISECONDS);
+        this.stackFrameCache = builder.stackFrameCacheSize > 0
+                ? new FragmentCache<>(builder.stackFrameCacheSize) : null;
+        // Only rendered stack traces can be suppressed
+        this.stackTraceSuppression = builder.stackTraceSuppressionWindow > 0 && stackTraceField != null
+                ? new StackTraceSuppression(builder.stackTraceSuppressionWindow, builder.stackTraceSuppressionRenderEvery)
+                : null;
+        // Suppressed stack traces are identified by their hash, so it is always included when suppressing
+        this.stackHashField = builder.includeStackHash || stackTraceSuppression != null
+                ? renderFieldName(format, names.get(Field.STACK_HASH)) : null;
+        // Separate caches, so that short-lived thread names can not evict the (usually few) logger names
+        this.loggerNameCache = builder.nameCacheSize > 0 ? new FragmentCache<>(builder.nameCacheSize) : null;
+        this.threadNameCache = builder.nameCacheSize > 0 ? new FragmentCache<>(builder.nameCacheSize) : null;
+        this.exceptionClassCache = builder.nameCacheSize > 0 ? new FragmentCache<>(builder.nameCacheSize) : null;
+        this.contextDataWriter = new ContextDataWriter("_",
+                builder.nameCacheSize > 0 ? new FragmentCache<>(builder.nameCacheSize) : null,
+                builder.typedContextValues, builder.maxContextValueLength);
+        this.includeFormattedMessage = builder.includeFormattedMessage;
+        this.maxMessageLength = builder.maxMessageLength;
+        this.tagConsumer = new JsonTagConsumer(builder.maxMessageLength);
+        this.maxStackTraceFrames = builder.maxStackTraceFrames;
+        this.maxStackTraceDepth = builder.maxStackTraceDepth;
+        this.throwableFrames = builder.throwableFrames;
+        this.excludedFramePackages = splitPackages(builder.excludedFramePackages);
+        this.mapMessageWriter = builder.structuredMessages
+                ? new ContextDataWriter("",
+                        builder.nameCacheSize > 0 ? new FragmentCache<>(builder.nameCacheSize) : null, true,
+                        builder.maxMessageLength)
+                : null;
+        if (builder.batchEncoding) {
+            LOGGER.warn("batchEncoding is deprecated and ignored; every event is written as it is encoded");
+        }
+        this.metrics = builder.metrics ? new LayoutMetrics() : null;
+        this.fieldPlan = compileFieldPlan(builder.includeThreadContext, builder.reuseRenderedThreadContext);
+        if (metrics != null && builder.getConfiguration() != null) {
+            metrics.register(builder.getConfiguration().getLoggerContext(), builder.getConfiguration(),
+                    builder.metricsName != null ? builder.metricsName : "LogstashLayoutV1");
+        }
+    }
+
+    private static String[] splitPackages(String packages) {
+        List<String> prefixes = new ArrayList<>();
+        if (packages != null) {
+            for (String prefix : packages.split(",")) {
+                if (!prefix.trim().isEmpty()) {
+                    prefixes.add(prefix.trim());
+                }
+            }
+        }
+        return prefixes.toArray(new String[0]);
+    }
+
+    private static Map<Field, String> resolveFieldNames(FieldNames preset, FieldName[] overrides) {
+        Map<Field, String> names = new EnumMap<>(Field.class);
+        for (Field field : Field.values()) {
+            String name = preset.defaultName(field);
+            if (name != null) {
+                names.put(field, name);
+            }
+        }
+        if (overrides != null) {
+            for (FieldName override : overrides) {
+                if (override == null || override.getField() == null) {
+                    continue;
+                }
+                String name = override.resolve(names.get(override.getField()));
+                if (name != null) {
+                    names.put(override.getField(), name);
+                } else {
+                    names.remove(override.getField());
+                }
+            }
+        }
+        return names;
     }
 
-    private LogstashLayoutV1(Configuration config, String host, boolean includeStacktrace, boolean includeThreadContext, boolean includeTimestamp) {
-        super(config, null, null);
-        this.objectHeader = renderObjectHeader(1, host);
-        this.includeStacktrace = includeStacktrace;
-        this.includeThreadContext = includeThreadContext;
-        this.includeTimestamp = includeTimestamp;
-        this.encoder = new StringBuilderEncoder(UTF_8);
+    // Only the fields that are configured to be rendered are in the plan, so rendering an event is a loop over the
+    // plan rather than a series of checks of the configuration. With metrics, the writers of the parts that are
+    // measured are wrapped, so that nothing is measured without them.
+    private FieldWriter[] compileFieldPlan(boolean includeThreadContext, boolean reuseRenderedThreadContext) {
+        List<FieldWriter> plan = new ArrayList<>();
+        if (staticFields.length > 0) {
+            plan.add(this::appendStaticFields);
+        }
+        if (dynamicFieldNames.length > 0) {
+            plan.add(this::appendDynamicFields);
+        }
+        if (timestampField != null) {
+            plan.add(this::appendTimestampField);
+        }
+        if (levelField != null) {
+            plan.add(this::appendLevelField);
+        }
+        if (levelValueField != null) {
+            plan.add(this::appendLevelValueField);
+        }
+        if (threadNameField != null) {
+            plan.add(this::appendThreadNameField);
+        }
+        if (loggerNameField != null) {
+            plan.add(this::appendLoggerNameField);
+        }
+        if (includeThreadContext) {
+            FieldWriter contextData = reuseRenderedThreadContext
+                    ? this::appendRenderedContextData : this::appendContextData;
+            plan.add(metrics != null ? metrics.measureContext(contextData) : contextData);
+        }
+        if (stackHashField != null || stackTraceField != null) {
+            FieldWriter thrown = this::appendThrownFields;
+            plan.add(metrics != null ? metrics.measureStackTrace(thrown) : thrown);
+        }
+        if (exceptionClassField != null || exceptionMessageField != null || rootCauseClassField != null
+                || rootCauseMessageField != null || framesField != null) {
+            FieldWriter structuredThrowable = this::appendStructuredThrowableFields;
+            plan.add(metrics != null ? metrics.measureStackTrace(structuredThrowable) : structuredThrowable);
+        }
+        FieldWriter message = this::appendMessageFields;
+        plan.add(metrics != null ? metrics.measureMessage(message) : message);
+        return plan.toArray(new FieldWriter[0]);
+    }
+
+    private static EncodingBuffersSource encodingBuffersSource(OutputFormat format, BufferPool bufferPool,
+            int bufferPoolSize) {
+        EncodingBuffersSource threadLocal = format == OutputFormat.CBOR ? cborEncodingBuffers : jsonEncodingBuffers;
+        if (bufferPool == null || bufferPool == BufferPool.THREAD_LOCAL) {
+            return threadLocal;
+        }
+        EncodingBuffersSource pooled = EncodingBuffersSource.pooled(
+                () -> new EncodingBuffers(format, DEFAULT_STRING_BUILDER_SIZE), bufferPoolSize);
+        return bufferPool == BufferPool.POOLED ? pooled : EncodingBuffersSource.auto(threadLocal, pooled);
     }
 
     @PluginBuilderFactory
@@ -136,6 +772,37 @@ public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLa
         return new Builder<B>().asBuilder();
     }
 
+    /**
+     * @return the number of stack frames found in the stack frame cache, or 0 if the cache is disabled
+     */
+    public long getStackFrameCacheHits() {
+        return stackFrameCache != null ? stackFrameCache.getHits() : 0;
+    }
+
+    /**
+     * @return the number of stack frames not found in the stack frame cache, or 0 if the cache is disabled
+     */
+    public long getStackFrameCacheMisses() {
+        return stackFrameCache != null ? stackFrameCache.getMisses() : 0;
+    }
+
+    /**
+     * @return the metrics of the layout, or {@code null} if they are disabled
+     */
+    public LayoutMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Unregisters the MBean of the metrics, if any. This is done when the configuration of the layout is replaced or
+     * its logger context stops, so only layouts that are discarded before that need to be stopped.
+     */
+    public void stop() {
+        if (metrics != null) {
+            metrics.unregister();
+        }
+    }
+
     @Override
     public Map<String, String> getContentFormat() {
         return Collections.emptyMap();
@@ -143,253 +810,626 @@ public class LogstashLayoutV1 extends AbstractLayout<String> implements StringLa
 
     @Override
     public String getContentType() {
-        return "application/json";
+        return format.getContentType();
     }
 
     @FunctionalInterface
     private interface EventTransformer<T> {
-        T transform(LogEvent event, StringBuilder textBuilder, StringBuilder jsonBuilder);
+        T transform(LogstashLayoutV1 layout, LogEvent event, EncodingBuffers buffers);
     }
 
     @FunctionalInterface
     private interface EventTransformerTo<T> {
-        void transformTo(LogEvent event, T into, StringBuilder textBuilder, StringBuilder jsonBuilder);
+        void transformTo(LogstashLayoutV1 layout, LogEvent event, T into, EncodingBuffers buffers);
     }
 
-    private static <T> T transformEvent(LogEvent event, EventTransformer<T> transformer) {
-        StringBuilder builders[] = stringBuilders.get();
-        builders[0].setLength(0);
-        builders[1].setLength(0);
+    // The transformers are unbound method references so that no lambda has to be captured per event
+    private <T> T transformEvent(LogEvent event, EventTransformer<T> transformer) {
+        EncodingBuffers buffers = encodingBuffers.acquire();
         try {
-            return transformer.transform(event, builders[0], builders[1]);
+            buffers.reset();
+            return transformer.transform(this, event, buffers);
         }
         finally {
-            StringBuilders.trimToMaxSize(builders[0], MAX_STRING_BUILDER_SIZE);
-            StringBuilders.trimToMaxSize(builders[1], MAX_STRING_BUILDER_SIZE);
+            trimToMaxSize(buffers, MAX_STRING_BUILDER_SIZE);
+            encodingBuffers.release(buffers);
         }
     }
 
 
     @Override
     public Charset getCharset() {
-        return UTF_8;
+        return format.getCharset();
     }
 
-    private static <T> void transformEvent(LogEvent event, T into, EventTransformerTo<T> transformer) {
-        StringBuilder builders[] = stringBuilders.get();
-        builders[0].setLength(0);
-        builders[1].setLength(0);
+    private <T> void transformEvent(LogEvent event, T into, EventTransformerTo<T> transformer) {
+        EncodingBuffers buffers = encodingBuffers.acquire();
         try {
-            transformer.transformTo(event, into, builders[0], builders[1]);
+            buffers.reset();
+            transformer.transformTo(this, event, into, buffers);
         }
         finally {
-            StringBuilders.trimToMaxSize(builders[0], MAX_STRING_BUILDER_SIZE);
-            StringBuilders.trimToMaxSize(builders[1], MAX_STRING_BUILDER_SIZE);
+            trimToMaxSize(buffers, MAX_STRING_BUILDER_SIZE);
+            encodingBuffers.release(buffers);
+        }
+    }
+
+    private void trimToMaxSize(EncodingBuffers buffers, int maxSize) {
+        if (buffers.trimToMaxSize(maxSize) && metrics != null) {
+            metrics.recordBufferTrim();
         }
     }
 
-    private byte[] toByteArray(LogEvent event, StringBuilder textBuilder, StringBuilder jsonBuilder) {
-        toText(event, textBuilder, jsonBuilder);
-        return jsonBuilder.toString().getBytes(UTF_8);
+    private byte[] toByteArray(LogEvent event, EncodingBuffers buffers) {
+        toJson(event, buffers);
+        return buffers.json.toByteArray();
     }
 
     @Override
     public byte[] toByteArray(LogEvent event) {
-        return transformEvent(event, this::toByteArray);
+        return transformEvent(event, LogstashLayoutV1::toByteArray);
     }
 
 
-    private void encode(LogEvent event, ByteBufferDestination destination, StringBuilder textBuilder, StringBuilder jsonBuilder) {
-        toText(event, textBuilder, jsonBuilder);
-        encoder.encode(jsonBuilder, destination);
+    private void encode(LogEvent event, ByteBufferDestination destination, EncodingBuffers buffers) {
+        toJson(event, buffers);
+        buffers.json.writeTo(destination);
     }
 
+    // Appenders frame, compress and flush what encode writes as soon as it returns, so nothing is held back
     @Override
     public void encode(LogEvent event, ByteBufferDestination destination) {
-        transformEvent(event, destination, this::encode);
+        transformEvent(event, destination, LogstashLayoutV1::encode);
+    }
+
+    /**
+     * Encodes events back to back, and writes them to the destination in as few chunks as possible. If an event
+     * fails to encode, the events before it are written before the failure is thrown.
+     */
+    public void encode(List<? extends LogEvent> events, ByteBufferDestination destination) {
+        EncodingBuffers buffers = encodingBuffers.acquire();
+        try {
+            buffers.reset();
+            for (int i = 0; i < events.size(); i++) {
+                buffers.text.setLength(0);
+                int start = buffers.json.length();
+                try {
+                    toJson(events.get(i), buffers);
+                }
+                catch (RuntimeException e) {
+                    buffers.json.setLength(start);
+                    if (start > 0) {
+                        buffers.json.writeTo(destination);
+                    }
+                    throw e;
+                }
+                if (buffers.json.length() >= MAX_BATCH_SIZE / 2) {
+                    buffers.json.writeTo(destination);
+                    buffers.json.setLength(0);
+                }
+            }
+            if (buffers.json.length() > 0) {
+                buffers.json.writeTo(destination);
+            }
+        }
+        finally {
+            buffers.reset();
+            trimToMaxSize(buffers, MAX_BATCH_SIZE);
+            encodingBuffers.release(buffers);
+        }
     }
 
-    private String toSerializable(LogEvent event, StringBuilder textBuilder, StringBuilder jsonBuilder) {
-        toText(event, textBuilder, jsonBuilder);
-        return jsonBuilder.toString();
+    private String toSerializable(LogEvent event, EncodingBuffers buffers) {
+        toJson(event, buffers);
+        return buffers.json.toString();
     }
 
     @Override
     public String toSerializable(LogEvent event) {
-        return transformEvent(event, this::toSerializable);
+        return transformEvent(event, LogstashLayoutV1::toSerializable);
+    }
+
+    private static byte[] renderStaticFields(OutputFormat format, Map<Field, String> names, String host,
+            KeyValuePair[] additionalFields) {
+        JsonBuffer buffer = format.newBuffer(64);
+        String versionName = names.get(Field.VERSION);
+        if (versionName != null) {
+            buffer.append(renderFieldName(format, versionName))
+                    .append(VERSION);
+        }
+        String hostName = names.get(Field.HOST);
+        if (hostName != null) {
+            buffer.append(renderFieldName(format, hostName))
+                    .appendString(toNullSafeString(host));
+        }
+        for (KeyValuePair field : additionalFields) {
+            if (!needsLookup(field.getValue())) {
+                buffer.append(renderFieldName(format, field.getKey()));
+                appendStaticValue(field.getValue(), buffer);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private static boolean needsLookup(String value) {
+        return value != null && value.contains("${");
+    }
+
+    // Values that are canonical integers or booleans are rendered as such, everything else as strings
+    private static void appendStaticValue(String value, JsonBuffer jsonBuffer) {
+        if (value == null) {
+            jsonBuffer.appendNull();
+        } else if ("true".equals(value) || "false".equals(value)) {
+            jsonBuffer.append(Boolean.parseBoolean(value));
+        } else if (isCanonicalLong(value)) {
+            jsonBuffer.append(Long.parseLong(value));
+        } else {
+            jsonBuffer.appendString(value);
+        }
+    }
+
+    private static boolean isCanonicalLong(String value) {
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the rendered name of the field ({@code ,"name":} in JSON), or {@code null} if the field is left out
+     */
+    private static byte[] renderFieldName(OutputFormat format, String name) {
+        if (name == null) {
+            return null;
+        }
+        return format.newBuffer(name.length() + 5)
+                .beginFieldName()
+                .appendEscaped(name)
+                .endFieldName()
+                .toByteArray();
     }
 
-    private static String renderObjectHeader(int version, String host) {
-        StringBuilder builder = new StringBuilder();
-        appendVersionField(version, builder);
-        appendHostField(host, builder);
-        return builder.toString();
+    private void toJson(LogEvent event, EncodingBuffers buffers) {
+        if (metrics == null) {
+            appendEvent(event, buffers.json, buffers);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        int start = buffers.json.length();
+        appendEvent(event, buffers.json, buffers);
+        metrics.recordEvent(event.getMessage(), buffers.json.length() - start, System.nanoTime() - startNanos);
     }
 
-    private void toText(LogEvent event, StringBuilder textBuilder, StringBuilder jsonBuilder) {
-        jsonBuilder.append('{');
-        jsonBuilder.append(objectHeader);
-        if (includeTimestamp) {
-            jsonBuilder.append("\"@timestamp\":\"");
-            appendTimestamp(event.getTimeMillis(), jsonBuilder)
-                    .append(QC);
+    private void appendEvent(LogEvent event, JsonBuffer jsonBuffer, EncodingBuffers buffers) {
+        int start = jsonBuffer.beginObject();
+        for (FieldWriter field : fieldPlan) {
+            field.write(event, buffers);
         }
-        jsonBuilder.append("\"level\":\"")
-                .append(event.getLevel().name())
-                .append(QC);
-        jsonBuilder.append("\"level_value\":");
-        appendLevelValue(event.getLevel(), jsonBuilder);
+        jsonBuffer.endObject(start);
+        jsonBuffer.appendEventSeparator();
+    }
 
+    private void appendStaticFields(LogEvent event, EncodingBuffers buffers) {
+        buffers.json.append(staticFields);
+    }
+
+    private void appendDynamicFields(LogEvent event, EncodingBuffers buffers) {
+        for (int i = 0; i < dynamicFieldNames.length; i++) {
+            buffers.json.append(dynamicFieldNames[i])
+                    .appendString(toNullSafeString(strSubstitutor.replace(event, dynamicFieldValues[i])));
+        }
+    }
+
+    private void appendTimestampField(LogEvent event, EncodingBuffers buffers) {
+        buffers.json.append(timestampField)
+                .beginString();
+        timestampRenderer.render(event.getInstant(), buffers.json)
+                .endString();
+    }
+
+    private void appendLevelField(LogEvent event, EncodingBuffers buffers) {
+        buffers.json.append(levelField)
+                .appendString(event.getLevel().name());
+    }
+
+    private void appendLevelValueField(LogEvent event, EncodingBuffers buffers) {
+        buffers.json.append(levelValueField);
+        appendLevelValue(event.getLevel(), buffers.json);
+    }
+
+    private void appendThreadNameField(LogEvent event, EncodingBuffers buffers) {
         if (event.getThreadName() != null) {
-            jsonBuilder.append(",\"thread_name\":\"");
-            JsonUtils.quoteAsString(event.getThreadName(), jsonBuilder);
-            jsonBuilder.append(Q);
+            buffers.json.append(threadNameField)
+                    .beginString();
+            appendCachedEscaped(event.getThreadName(), threadNameCache, buffers.json);
+            buffers.json.endString();
         }
+    }
 
+    private void appendLoggerNameField(LogEvent event, EncodingBuffers buffers) {
         if (event.getLoggerName() != null) {
-            jsonBuilder.append(",\"logger_name\":\"");
-            JsonUtils.quoteAsString(event.getLoggerName(), jsonBuilder);
-            jsonBuilder.append(Q);
+            buffers.json.append(loggerNameField)
+                    .beginString();
+            appendCachedEscaped(event.getLoggerName(), loggerNameCache, buffers.json);
+            buffers.json.endString();
         }
+    }
 
-        if (includeThreadContext) {
-            event.getContextData()
-                    .forEach(LogstashLayoutV1::appendKeyValue, jsonBuilder);
+    private void appendContextData(LogEvent event, EncodingBuffers buffers) {
+        event.getContextData()
+                .forEach(contextDataWriter, buffers.json);
+    }
+
+    private void appendRenderedContextData(LogEvent event, EncodingBuffers buffers) {
+        buffers.renderedContextData.append(event.getContextData(), contextDataWriter, buffers.json);
+    }
+
+    private void appendThrownFields(LogEvent event, EncodingBuffers buffers) {
+        Throwable thrown = event.getThrown();
+        if (thrown == null) {
+            return;
+        }
+        JsonBuffer jsonBuffer = buffers.json;
+        if (stackHashField != null || stackTraceSuppression != null) {
+            long stackHash = StackTraceHash.hash(thrown);
+            if (stackHashField != null) {
+                jsonBuffer.append(stackHashField)
+                        .beginString()
+                        .appendHex(stackHash)
+                        .endString();
+            }
+            if (stackTraceSuppression != null) {
+                long suppressed = stackTraceSuppression.suppressed(stackHash, event.getTimeMillis());
+                if (suppressed > 0) {
+                    if (stackTraceSuppressedField != null) {
+                        jsonBuffer.append(stackTraceSuppressedField)
+                                .append(suppressed);
+                    }
+                    return;
+                }
+            }
+        }
+
+        if (stackTraceField != null) {
+            jsonBuffer.append(stackTraceField)
+                    .beginString();
+            buffers.stackTraceRenderer.render(thrown, stackFrameCache, maxStackTraceFrames, maxStackTraceDepth,
+                    maxMessageLength, jsonBuffer);
+            jsonBuffer.endString();
+        }
+    }
+
+    private void appendStructuredThrowableFields(LogEvent event, EncodingBuffers buffers) {
+        Throwable thrown = event.getThrown();
+        if (thrown == null) {
+            return;
+        }
+        appendThrowableFields(thrown, exceptionClassField, exceptionMessageField, buffers.json);
+        if (rootCauseClassField != null || rootCauseMessageField != null) {
+            appendThrowableFields(rootCause(thrown), rootCauseClassField, rootCauseMessageField, buffers.json);
+        }
+        if (framesField != null) {
+            appendFrames(thrown.getStackTrace(), buffers.json);
         }
+    }
+
+    private void appendThrowableFields(Throwable thrown, byte[] classField, byte[] messageField,
+            JsonBuffer jsonBuffer) {
+        if (classField != null) {
+            jsonBuffer.append(classField)
+                    .beginString();
+            appendCachedEscaped(thrown.getClass().getName(), exceptionClassCache, jsonBuffer);
+            jsonBuffer.endString();
+        }
+        String message = messageField != null ? thrown.getLocalizedMessage() : null;
+        if (message != null) {
+            jsonBuffer.append(messageField)
+                    .beginString()
+                    .appendTruncated(message, maxMessageLength)
+                    .endString();
+        }
+    }
+
+    // The innermost cause; the slow pointer, moving at half the pace, catches up with the root if causes are circular
+    static Throwable rootCause(Throwable thrown) {
+        Throwable root = thrown;
+        Throwable slow = thrown;
+        boolean moveSlow = false;
+        for (Throwable cause = root.getCause(); cause != null && cause != root; cause = root.getCause()) {
+            root = cause;
+            if (moveSlow) {
+                slow = slow.getCause();
+                if (slow == root) {
+                    break;
+                }
+            }
+            moveSlow = !moveSlow;
+        }
+        return root;
+    }
+
+    private void appendFrames(StackTraceElement[] trace, JsonBuffer jsonBuffer) {
+        jsonBuffer.append(framesField)
+                .beginArray();
+        int rendered = 0;
+        for (int i = 0; i < trace.length && rendered < throwableFrames; i++) {
+            if (isExcludedFrame(trace[i])) {
+                continue;
+            }
+            if (rendered++ > 0) {
+                jsonBuffer.appendArraySeparator();
+            }
+            jsonBuffer.beginString();
+            StackTraceRenderer.appendCachedElement(trace[i], stackFrameCache, jsonBuffer);
+            jsonBuffer.endString();
+        }
+        jsonBuffer.endArray();
+    }
 
-        if (includeStacktrace && event.getThrown() != null) {
-            jsonBuilder.append(",\"stack_trace\":\"");
-            appendThrowable(event.getThrown(), textBuilder, jsonBuilder);
-            jsonBuilder.append(Q);
+    private boolean isExcludedFrame(StackTraceElement element) {
+        String className = element.getClassName();
+        for (String prefix : excludedFramePackages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
         }
+        return false;
+    }
 
+    private void appendMessageFields(LogEvent event, EncodingBuffers buffers) {
         Message message = event.getMessage();
         if (message instanceof TaggedMessage) {
-            ((TaggedMessage) message).getTags().forEach(jsonBuilder, this);
+            ((TaggedMessage) message).getTags().forEach(buffers.json, tagConsumer);
+        }
+        else if (mapMessageWriter != null && message instanceof MapMessage) {
+            ((MapMessage<?, ?>) message).forEach(mapMessageWriter, buffers.json);
+        }
+        else if (mapMessageWriter != null && message instanceof ObjectArrayMessage) {
+            appendParameters(message.getParameters(), buffers);
+        }
+        else if (messageTemplateField != null && isParameterized(message)) {
+            if (includeFormattedMessage) {
+                appendMessageField(message, buffers);
+            }
+            appendMessageTemplate(message, buffers);
         }
         else {
-            jsonBuilder.append(",\"message\":\"");
-            appendMessage(message, textBuilder, jsonBuilder);
-            jsonBuilder.append(Q);
+            appendMessageField(message, buffers);
         }
-        jsonBuilder.append('}');
-        jsonBuilder.append('\n');
     }
 
-    private static CharSequence toNullSafeString(CharSequence s) {
-        return s == null ? Strings.EMPTY : s;
+    private void appendMessageField(Message message, EncodingBuffers buffers) {
+        if (messageField != null) {
+            buffers.json.append(messageField)
+                    .beginString();
+            appendMessage(message, maxMessageLength, buffers.text, buffers.json);
+            buffers.json.endString();
+        }
     }
 
-    static void appendVersionField(int version, StringBuilder jsonBuilder) {
-        jsonBuilder.append("\"@version\":")
-                .append(version)
-                .append(C);
+    // The garbage-free variants (and the mutable log events that copy them) are visited rather than asked for their
+    // parameters, which would copy the parameter array
+    static boolean isParameterized(Message message) {
+        if (message instanceof ParameterizedMessage) {
+            return message.getFormat() != null;
+        }
+        return message instanceof ReusableMessage && message instanceof ParameterVisitable
+                && ((ReusableMessage) message).getParameterCount() > 0 && message.getFormat() != null;
     }
 
-    static void appendHostField(String host, StringBuilder jsonBuilder) {
-        jsonBuilder.append("\"source_host\":\"");
-        JsonUtils.quoteAsString(toNullSafeString(host), jsonBuilder);
-        jsonBuilder.append(QC);
+    private void appendMessageTemplate(Message message, EncodingBuffers buffers) {
+        JsonBuffer jsonBuffer = buffers.json;
+        jsonBuffer.append(messageTemplateField)
+                .beginString()
+                .appendTruncated(message.getFormat(), maxMessageLength)
+                .endString();
+        if (messageParamsField == null) {
+            return;
+        }
+        if (message instanceof ParameterVisitable) {
+            jsonBuffer.append(messageParamsField)
+                    .beginArray();
+            ((ParameterVisitable) message).forEachParameter(parameterConsumer, buffers);
+            jsonBuffer.endArray();
+        } else {
+            appendParameters(message.getParameters(), buffers);
+        }
     }
 
-    static void appendMessage(Message message, StringBuilder textBuilder, StringBuilder jsonBuilder) {
+    private void appendParameters(Object[] parameters, EncodingBuffers buffers) {
+        if (messageParamsField == null) {
+            return;
+        }
+        buffers.json.append(messageParamsField)
+                .beginArray();
+        if (parameters != null) {
+            for (int i = 0; i < parameters.length; i++) {
+                appendParameter(parameters[i], i, buffers);
+            }
+        }
+        buffers.json.endArray();
+    }
+
+    private void appendParameter(Object parameter, int index, EncodingBuffers buffers) {
+        JsonBuffer jsonBuffer = buffers.json;
+        if (index > 0) {
+            jsonBuffer.appendArraySeparator();
+        }
+        if (parameter == null || parameter instanceof CharSequence || parameter instanceof Boolean
+                || parameter instanceof Number) {
+            jsonBuffer.appendValue(parameter, maxMessageLength);
+        } else if (parameter instanceof StringBuilderFormattable) {
+            StringBuilder textBuilder = buffers.text;
+            textBuilder.setLength(0);
+            ((StringBuilderFormattable) parameter).formatTo(textBuilder);
+            jsonBuffer.appendString(textBuilder, maxMessageLength);
+        } else {
+            // Formatted like the parameter is in the formatted message, which also takes care of arrays and maps
+            jsonBuffer.appendString(ParameterizedMessage.deepToString(parameter), maxMessageLength);
+        }
+    }
+
+    private static CharSequence toNullSafeString(CharSequence s) {
+        return s == null ? Strings.EMPTY : s;
+    }
+
+    static void appendCachedEscaped(String s, FragmentCache<String> cache, JsonBuffer jsonBuffer) {
+        if (cache == null) {
+            jsonBuffer.appendEscaped(s);
+            return;
+        }
+        byte[] fragment = cache.get(s);
+        if (fragment != null) {
+            jsonBuffer.append(fragment);
+            return;
+        }
+        int start = jsonBuffer.length();
+        jsonBuffer.appendEscaped(s);
+        cache.put(s, jsonBuffer.toByteArray(start));
+    }
+
+    // Messages are cut while escaping. Formattable messages have no way to stop formatting at the limit, so they are
+    // formatted in full and then cut
+    static void appendMessage(Message message, int maxLength, StringBuilder textBuilder, JsonBuffer jsonBuffer) {
         if (message instanceof CharSequence) {
-            JsonUtils.quoteAsString((CharSequence) message, jsonBuilder);
+            jsonBuffer.appendTruncated((CharSequence) message, maxLength);
         } else if (message instanceof StringBuilderFormattable) {
             textBuilder.setLength(0);
             ((StringBuilderFormattable) message).formatTo(textBuilder);
-            JsonUtils.quoteAsString(textBuilder, jsonBuilder);
+            jsonBuffer.appendTruncated(textBuilder, maxLength);
         } else {
-            JsonUtils.quoteAsString(toNullSafeString(message.getFormattedMessage()), jsonBuilder);
+            jsonBuffer.appendTruncated(toNullSafeString(message.getFormattedMessage()), maxLength);
         }
     }
 
-    static void appendKeyValue(CharSequence key, Object value, StringBuilder stringBuilder) {
-        stringBuilder.append(CQU);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":\"");
-        JsonUtils.quoteAsString(toNullSafeString(String.valueOf(value)), stringBuilder);
-        stringBuilder.append(Q);
+    static void appendTaggedTextValue(CharSequence key, Object value, int maxLength, JsonBuffer jsonBuffer) {
+        appendTagName(key, jsonBuffer);
+        jsonBuffer.appendString(toNullSafeString(String.valueOf(value)), maxLength);
     }
 
-    static void appendTaggedTextValue(CharSequence key, Object value, StringBuilder stringBuilder) {
-        stringBuilder.append(CQ);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":");
-        stringBuilder.append(Q);
-        JsonUtils.quoteAsString(toNullSafeString(String.valueOf(value)), stringBuilder);
-        stringBuilder.append(Q);
+    static void appendTaggedLongValue(CharSequence key, long value, JsonBuffer jsonBuffer) {
+        appendTagName(key, jsonBuffer);
+        jsonBuffer.append(value);
     }
 
-    static void appendTaggedLongValue(CharSequence key, long value, StringBuilder stringBuilder) {
-        stringBuilder.append(CQ);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":");
-        stringBuilder.append(value);
+    static void appendTaggedDoubleValue(CharSequence key, double value, JsonBuffer jsonBuffer) {
+        appendTagName(key, jsonBuffer);
+        jsonBuffer.append(value);
     }
 
-    static void appendTaggedDoubleValue(CharSequence key, double value, StringBuilder stringBuilder) {
-        stringBuilder.append(CQ);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":");
-        stringBuilder.append(value);
+    static void appendTaggedBooleanValue(CharSequence key, boolean value, JsonBuffer jsonBuffer) {
+        appendTagName(key, jsonBuffer);
+        jsonBuffer.append(value);
     }
 
-    static void appendTaggedBooleanValue(CharSequence key, boolean value, StringBuilder stringBuilder) {
-        stringBuilder.append(CQ);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":");
-        stringBuilder.append(value);
+    static void appendTaggedNullValue(CharSequence key, JsonBuffer jsonBuffer) {
+        appendTagName(key, jsonBuffer);
+        jsonBuffer.appendNull();
     }
 
-    static void appendTaggedNullValue(CharSequence key, StringBuilder stringBuilder) {
-        stringBuilder.append(CQ);
-        JsonUtils.quoteAsString(key, stringBuilder);
-        stringBuilder.append("\":null");
-    }
-
-    static StringBuilder appendTimestamp(long timeMillis, StringBuilder stringBuilder) {
-        DATE_FORMATTER.format(timeMillis, stringBuilder);
-        stringBuilder.append('Z'); // Always UTC
-        return stringBuilder;
+    private static void appendTagName(CharSequence key, JsonBuffer jsonBuffer) {
+        jsonBuffer.beginFieldName()
+                .appendEscaped(key)
+                .endFieldName();
     }
 
-    static StringBuilder appendLevelValue(Level level, StringBuilder stringBuilder) {
+    static JsonBuffer appendLevelValue(Level level, JsonBuffer jsonBuffer) {
         int levelValue = Severity.getSeverity(level).getCode();
-        stringBuilder.append(levelValue);
-        return stringBuilder;
+        jsonBuffer.append(levelValue);
+        return jsonBuffer;
     }
 
-    static void appendThrowable(Throwable throwable, StringBuilder textBuilder, StringBuilder jsonBuilder) {
-        textBuilder.setLength(0);
-        StringBuilderWriter sw = new StringBuilderWriter(textBuilder);
-        PrintWriter pw = new PrintWriter(sw);
-        throwable.printStackTrace(pw);
-        JsonUtils.quoteAsString(textBuilder, jsonBuilder);
+    private static void appendTagName(CharSequence key, StringBuilder stringBuilder) {
+        stringBuilder.append(",\"");
+        JsonUtils.quoteAsString(key, stringBuilder);
+        stringBuilder.append("\":");
     }
 
+    /**
+     * @deprecated events are encoded as bytes, and no longer through this layout; kept for callers that render tags
+     *             as JSON text
+     */
+    @Deprecated
     @Override
     public void textTag(CharSequence key, CharSequence value, StringBuilder stringBuilder) {
-        LogstashLayoutV1.appendTaggedTextValue(key, value, stringBuilder);
+        appendTagName(key, stringBuilder);
+        stringBuilder.append('"');
+        JsonUtils.quoteAsString(String.valueOf(value), stringBuilder);
+        stringBuilder.append('"');
     }
 
+    /**
+     * @deprecated see {@link #textTag(CharSequence, CharSequence, StringBuilder)}
+     */
+    @Deprecated
     @Override
     public void longTag(CharSequence key, long value, StringBuilder stringBuilder) {
-        LogstashLayoutV1.appendTaggedLongValue(key, value, stringBuilder);
+        appendTagName(key, stringBuilder);
+        stringBuilder.append(value);
     }
 
+    /**
+     * @deprecated see {@link #textTag(CharSequence, CharSequence, StringBuilder)}
+     */
+    @Deprecated
     @Override
     public void booleanTag(CharSequence key, boolean value, StringBuilder stringBuilder) {
-        LogstashLayoutV1.appendTaggedBooleanValue(key, value, stringBuilder);
+        appendTagName(key, stringBuilder);
+        stringBuilder.append(value);
     }
 
+    /**
+     * @deprecated see {@link #textTag(CharSequence, CharSequence, StringBuilder)}
+     */
+    @Deprecated
     @Override
     public void doubleTag(CharSequence key, double value, StringBuilder stringBuilder) {
-        LogstashLayoutV1.appendTaggedDoubleValue(key, value, stringBuilder);
+        appendTagName(key, stringBuilder);
+        stringBuilder.append(value);
     }
 
+    /**
+     * @deprecated see {@link #textTag(CharSequence, CharSequence, StringBuilder)}
+     */
+    @Deprecated
     @Override
     public void nullTag(CharSequence key, StringBuilder stringBuilder) {
-        LogstashLayoutV1.appendTaggedNullValue(key, stringBuilder);
+        appendTagName(key, stringBuilder);
+        stringBuilder.append("null");
+    }
+
+    private static final class JsonTagConsumer implements TagConsumer<JsonBuffer> {
+        private final int maxTextLength;
+
+        JsonTagConsumer(int maxTextLength) {
+            this.maxTextLength = maxTextLength;
+        }
+
+        @Override
+        public void textTag(CharSequence key, CharSequence value, JsonBuffer jsonBuffer) {
+            LogstashLayoutV1.appendTaggedTextValue(key, value, maxTextLength, jsonBuffer);
+        }
+
+        @Override
+        public void longTag(CharSequence key, long value, JsonBuffer jsonBuffer) {
+            LogstashLayoutV1.appendTaggedLongValue(key, value, jsonBuffer);
+        }
+
+        @Override
+        public void booleanTag(CharSequence key, boolean value, JsonBuffer jsonBuffer) {
+            LogstashLayoutV1.appendTaggedBooleanValue(key, value, jsonBuffer);
+        }
+
+        @Override
+        public void doubleTag(CharSequence key, double value, JsonBuffer jsonBuffer) {
+            LogstashLayoutV1.appendTaggedDoubleValue(key, value, jsonBuffer);
+        }
+
+        @Override
+        public void nullTag(CharSequence key, JsonBuffer jsonBuffer) {
+            LogstashLayoutV1.appendTaggedNullValue(key, jsonBuffer);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,243 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends events to a Logstash beats input, or anything else that speaks the Lumberjack (version 2) protocol.
+ *
+ * The layout must render JSON, and defaults to a {@link LogstashLayoutV1}.
+ */
+@Plugin(name = "Lumberjack", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class LumberjackAppender extends AbstractAppender {
+    private final LumberjackManager manager;
+    private final boolean immediateFlush;
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<LumberjackAppender> {
+
+        @PluginBuilderAttribute
+        @Required
+        private String host;
+
+        @PluginBuilderAttribute
+        private int port = 5044;
+
+        @PluginBuilderAttribute
+        private int windowSize = 512;
+
+        @PluginBuilderAttribute
+        private int maxPendingWindows = 2;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = 3;
+
+        @PluginBuilderAttribute
+        private int connectTimeoutMillis = 10000;
+
+        @PluginBuilderAttribute
+        private int ackTimeoutMillis = 30000;
+
+        @PluginBuilderAttribute
+        private long reconnectDelayMillis = 1000;
+
+        @PluginBuilderAttribute
+        private long lingerMillis = 1000;
+
+        @PluginBuilderAttribute
+        private boolean immediateFlush = true;
+
+        public Builder() {
+            super();
+        }
+
+        @Override
+        public LumberjackAppender build() {
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("windowSize must be at least 1");
+            }
+            if (maxPendingWindows < 1) {
+                throw new IllegalArgumentException("maxPendingWindows must be at least 1");
+            }
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+            }
+            Layout<? extends Serializable> layout = getLayout();
+            if (layout == null) {
+                layout = LogstashLayoutV1.newBuilder().setConfiguration(getConfiguration()).build();
+            }
+            // Lumberjack JSON frames carry a single JSON document each
+            String contentType = layout.getContentType();
+            if (contentType == null || !contentType.startsWith(OutputFormat.JSON.getContentType())) {
+                LOGGER.error("The layout of {} renders {}, not {}", getName(), contentType,
+                        OutputFormat.JSON.getContentType());
+                return null;
+            }
+            LumberjackManager manager = LumberjackManager.getManager(host, port, windowSize, maxPendingWindows,
+                    compressionLevel, connectTimeoutMillis, ackTimeoutMillis, reconnectDelayMillis, lingerMillis);
+            if (manager == null) {
+                LOGGER.error("Unable to create the manager of {} for {}:{}", getName(), host, port);
+                return null;
+            }
+            return new LumberjackAppender(getName(), getFilter(), layout, isIgnoreExceptions(), getPropertyArray(),
+                    manager, immediateFlush);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public int getMaxPendingWindows() {
+            return maxPendingWindows;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public int getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        public int getAckTimeoutMillis() {
+            return ackTimeoutMillis;
+        }
+
+        public long getReconnectDelayMillis() {
+            return reconnectDelayMillis;
+        }
+
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+
+        public boolean isImmediateFlush() {
+            return immediateFlush;
+        }
+
+        public B setHost(String host) {
+            this.host = host;
+            return asBuilder();
+        }
+
+        public B setPort(int port) {
+            this.port = port;
+            return asBuilder();
+        }
+
+        /**
+         * @param windowSize the largest number of events sent in one window
+         */
+        public B setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+            return asBuilder();
+        }
+
+        /**
+         * @param maxPendingWindows the number of windows sent before waiting for the oldest to be acknowledged, which
+         *                          every thread logging to the appender waits for too
+         */
+        public B setMaxPendingWindows(int maxPendingWindows) {
+            this.maxPendingWindows = maxPendingWindows;
+            return asBuilder();
+        }
+
+        /**
+         * @param compressionLevel the deflate level windows are compressed with, or 0 to not compress them
+         */
+        public B setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        public B setConnectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param ackTimeoutMillis how long to wait for an acknowledgement before reconnecting and sending the
+         *                         pending windows again
+         */
+        public B setAckTimeoutMillis(int ackTimeoutMillis) {
+            this.ackTimeoutMillis = ackTimeoutMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param reconnectDelayMillis the least time between attempts to connect; events appended in between fail
+         */
+        public B setReconnectDelayMillis(long reconnectDelayMillis) {
+            this.reconnectDelayMillis = reconnectDelayMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param lingerMillis the age of a window after which it is sent, whether or not it is full, or 0 to hold
+         *                     events until the window is full or a batch of asynchronous events ends
+         */
+        public B setLingerMillis(long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param immediateFlush whether every event is sent at once, rather than when a window is full, at the end
+         *                       of a batch of asynchronous events or {@code lingerMillis} after its first event
+         */
+        public B setImmediateFlush(boolean immediateFlush) {
+            this.immediateFlush = immediateFlush;
+            return asBuilder();
+        }
+    }
+
+    private LumberjackAppender(String name, Filter filter, Layout<? extends Serializable> layout,
+            boolean ignoreExceptions, Property[] properties, LumberjackManager manager, boolean immediateFlush) {
+        super(name, filter, layout, ignoreExceptions, properties);
+        this.manager = manager;
+        this.immediateFlush = immediateFlush;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    public LumberjackManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        manager.send(event, getLayout(), immediateFlush || event.isEndOfBatch());
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        stopped &= manager.stop(timeout, timeUnit);
+        setStopped();
+        return stopped;
+    }
+}
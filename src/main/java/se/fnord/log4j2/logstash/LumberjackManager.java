@@ -0,0 +1,429 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Sends events to a Lumberjack (version 2) server, like the Logstash beats input, in windows of JSON frames.
+ *
+ * Each event is encoded by the layout straight into the frame of the current window. A window is sent when it is
+ * full, flushed or {@code lingerMillis} after its first event, which a background thread checks for. Windows are
+ * optionally deflate-compressed, and up to {@code maxPendingWindows} windows are sent before their acknowledgements
+ * arrive. When that many are pending, sending waits for the oldest to be acknowledged, which is the backpressure that
+ * slows logging down to the pace of the server. Windows that are not acknowledged when the connection fails are sent
+ * again after reconnecting.
+ *
+ * Connecting, writing to the socket and waiting for acknowledgements all happen while holding the lock of the
+ * manager, so every thread that logs to it waits too, for up to {@code ackTimeoutMillis} when the server stalls.
+ */
+public class LumberjackManager extends AbstractManager {
+    private static final byte VERSION = '2';
+    private static final byte WINDOW_SIZE = 'W';
+    private static final byte COMPRESSED = 'C';
+    private static final byte JSON = 'J';
+    private static final byte ACK = 'A';
+    private static final int ACK_LENGTH = 6;
+    private static final int JSON_HEADER_LENGTH = 10;
+
+    private static final ManagerFactory<LumberjackManager, FactoryData> FACTORY = new LumberjackManagerFactory();
+
+    private final String host;
+    private final int port;
+    private final int windowSize;
+    private final int maxPendingWindows;
+    private final int connectTimeoutMillis;
+    private final int ackTimeoutMillis;
+    private final long reconnectDelayMillis;
+    private final long lingerMillis;
+    private final ScheduledExecutorService lingerTimer;
+    private final Deflater deflater;
+    private final byte[] ack = new byte[ACK_LENGTH];
+    private final ArrayDeque<Window> pendingWindows = new ArrayDeque<>();
+    private final ArrayDeque<Window> freeWindows = new ArrayDeque<>();
+    private Window currentWindow = new Window();
+    private long windowStartMillis;
+
+    private Socket socket;
+    private OutputStream outputStream;
+    private InputStream inputStream;
+    private long nextConnectMillis;
+
+    protected LumberjackManager(LoggerContext loggerContext, String name, FactoryData data) {
+        super(loggerContext, name);
+        this.host = data.host;
+        this.port = data.port;
+        this.windowSize = data.windowSize;
+        this.maxPendingWindows = data.maxPendingWindows;
+        this.connectTimeoutMillis = data.connectTimeoutMillis;
+        this.ackTimeoutMillis = data.ackTimeoutMillis;
+        this.reconnectDelayMillis = data.reconnectDelayMillis;
+        this.lingerMillis = data.lingerMillis;
+        this.deflater = data.compressionLevel > 0 ? new Deflater(data.compressionLevel) : null;
+        if (lingerMillis > 0) {
+            this.lingerTimer = Executors.newSingleThreadScheduledExecutor(
+                    Log4jThreadFactory.createDaemonThreadFactory("Lumberjack"));
+            long period = Math.max(lingerMillis / 4, 1);
+            lingerTimer.scheduleWithFixedDelay(this::sendExpiredWindow, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.lingerTimer = null;
+        }
+    }
+
+    public static LumberjackManager getManager(String host, int port, int windowSize, int maxPendingWindows,
+            int compressionLevel, int connectTimeoutMillis, int ackTimeoutMillis, long reconnectDelayMillis,
+            long lingerMillis) {
+        return getManager("Lumberjack:" + host + ':' + port, FACTORY, new FactoryData(host, port, windowSize,
+                maxPendingWindows, compressionLevel, connectTimeoutMillis, ackTimeoutMillis, reconnectDelayMillis,
+                lingerMillis));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Adds an event to the current window, which is sent if it is full or {@code endOfBatch} is set.
+     *
+     * @throws AppenderLoggingException if the window could not be sent, in which case it is kept (up to the window
+     *                                  size, after which further events are rejected) to be sent with the next event
+     */
+    public synchronized void send(LogEvent event, Layout<?> layout, boolean endOfBatch) {
+        if (currentWindow.count >= windowSize) {
+            sendWindow();
+        }
+        if (currentWindow.count == 0) {
+            windowStartMillis = System.currentTimeMillis();
+        }
+        currentWindow.add(event, layout);
+        if (endOfBatch || currentWindow.count >= windowSize) {
+            sendWindow();
+        }
+    }
+
+    public synchronized void flush() {
+        if (currentWindow.count > 0) {
+            sendWindow();
+        }
+    }
+
+    // Sends the current window once it is old enough, so that events are not held back while nothing is logged
+    private synchronized void sendExpiredWindow() {
+        try {
+            if (currentWindow.count > 0 && System.currentTimeMillis() - windowStartMillis >= lingerMillis) {
+                sendWindow();
+            }
+        }
+        catch (AppenderLoggingException e) {
+            logError("Unable to send events to " + host + ':' + port, e);
+        }
+    }
+
+    /**
+     * @return the number of windows that have been sent but not acknowledged
+     */
+    public synchronized int getPendingWindows() {
+        return pendingWindows.size();
+    }
+
+    @Override
+    protected synchronized boolean releaseSub(long timeout, TimeUnit timeUnit) {
+        boolean stopped = true;
+        if (lingerTimer != null) {
+            lingerTimer.shutdownNow();
+        }
+        try {
+            flush();
+            long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+            while (!pendingWindows.isEmpty() && (timeout <= 0 || System.nanoTime() < deadline)) {
+                awaitAck();
+            }
+        }
+        catch (AppenderLoggingException | IOException e) {
+            logError("Unable to send pending events to " + host + ':' + port, e);
+            stopped = false;
+        }
+        if (!pendingWindows.isEmpty()) {
+            logWarn(pendingWindows.size() + " windows sent to " + host + ':' + port + " were not acknowledged", null);
+        }
+        disconnect();
+        if (deflater != null) {
+            deflater.end();
+        }
+        return stopped;
+    }
+
+    private void sendWindow() {
+        currentWindow.seal(deflater);
+        try {
+            connect();
+            while (pendingWindows.size() >= maxPendingWindows) {
+                awaitAck();
+            }
+            currentWindow.writeTo(outputStream);
+            outputStream.flush();
+            pendingWindows.addLast(currentWindow);
+            currentWindow = newWindow();
+            readAvailableAcks();
+        }
+        catch (IOException e) {
+            disconnect();
+            throw new AppenderLoggingException("Unable to send events to " + host + ':' + port, e);
+        }
+    }
+
+    private Window newWindow() {
+        Window window = freeWindows.pollFirst();
+        return window != null ? window : new Window();
+    }
+
+    // Windows that were pending when the previous connection failed are sent again, in order
+    private void connect() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextConnectMillis) {
+            throw new IOException("Not reconnecting until " + (nextConnectMillis - now) + " ms from now");
+        }
+        nextConnectMillis = now + reconnectDelayMillis;
+        Socket newSocket = new Socket();
+        try {
+            newSocket.setTcpNoDelay(true);
+            newSocket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            newSocket.setSoTimeout(ackTimeoutMillis);
+            socket = newSocket;
+            outputStream = newSocket.getOutputStream();
+            inputStream = newSocket.getInputStream();
+            for (Window window : pendingWindows) {
+                window.writeTo(outputStream);
+            }
+            outputStream.flush();
+        }
+        catch (IOException e) {
+            closeQuietly(newSocket);
+            socket = null;
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            closeQuietly(socket);
+            socket = null;
+            outputStream = null;
+            inputStream = null;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException ignored) {
+            // Nothing more to do
+        }
+    }
+
+    private void readAvailableAcks() throws IOException {
+        while (!pendingWindows.isEmpty() && inputStream.available() >= ACK_LENGTH) {
+            readAck();
+        }
+    }
+
+    private void awaitAck() throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        try {
+            readAck();
+        }
+        catch (SocketTimeoutException e) {
+            disconnect();
+            throw new IOException("No acknowledgement from " + host + ':' + port + " within " + ackTimeoutMillis
+                    + " ms", e);
+        }
+        catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    // Acknowledgements of a part of the oldest window only tell that the server is making progress
+    private void readAck() throws IOException {
+        int read = 0;
+        while (read < ACK_LENGTH) {
+            int n = inputStream.read(ack, read, ACK_LENGTH - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed by " + host + ':' + port);
+            }
+            read += n;
+        }
+        if (ack[0] != VERSION || ack[1] != ACK) {
+            throw new IOException("Unexpected frame " + (char) ack[0] + (char) ack[1] + " from " + host + ':' + port);
+        }
+        long sequence = readInt(ack, 2) & 0xffffffffL;
+        Window oldest = pendingWindows.peekFirst();
+        if (oldest != null && sequence >= oldest.count) {
+            pendingWindows.removeFirst();
+            oldest.clear();
+            freeWindows.addLast(oldest);
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * The JSON frames of a window, and their encoding on the wire, which is kept until the window is acknowledged.
+     */
+    private static final class Window {
+        private final GrowableByteDestination frames = new GrowableByteDestination(8 * 1024);
+        private byte[] wire = new byte[0];
+        private int wireLength;
+        private int count;
+
+        void add(LogEvent event, Layout<?> layout) {
+            int start = frames.length();
+            frames.ensureCapacity(start + JSON_HEADER_LENGTH);
+            frames.setLength(start + JSON_HEADER_LENGTH);
+            int length;
+            try {
+                length = frames.encode(event, layout);
+            }
+            catch (RuntimeException e) {
+                frames.setLength(start);
+                throw e;
+            }
+            // The line separator that layouts end events with is not part of the JSON document of the frame
+            byte[] bytes = frames.bytes();
+            while (length > 0 && isLineSeparator(bytes[start + JSON_HEADER_LENGTH + length - 1])) {
+                length--;
+            }
+            frames.setLength(start + JSON_HEADER_LENGTH + length);
+            // Sequence numbers start over at 1 in every window
+            bytes[start] = VERSION;
+            bytes[start + 1] = JSON;
+            writeInt(bytes, start + 2, count + 1);
+            writeInt(bytes, start + 6, length);
+            count++;
+        }
+
+        private static boolean isLineSeparator(byte b) {
+            return b == '\n' || b == '\r';
+        }
+
+        void seal(Deflater deflater) {
+            int framesLength = frames.length();
+            if (deflater == null) {
+                wire = ensureCapacity(wire, 6 + framesLength);
+                writeHeader(WINDOW_SIZE, count);
+                System.arraycopy(frames.bytes(), 0, wire, 6, framesLength);
+                wireLength = 6 + framesLength;
+                return;
+            }
+            wire = ensureCapacity(wire, 12 + framesLength / 2);
+            writeHeader(WINDOW_SIZE, count);
+            deflater.reset();
+            deflater.setInput(frames.bytes(), 0, framesLength);
+            deflater.finish();
+            int length = 12;
+            while (!deflater.finished()) {
+                if (length == wire.length) {
+                    wire = Arrays.copyOf(wire, wire.length * 2);
+                }
+                length += deflater.deflate(wire, length, wire.length - length);
+            }
+            wire[6] = VERSION;
+            wire[7] = COMPRESSED;
+            writeInt(wire, 8, length - 12);
+            wireLength = length;
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            outputStream.write(wire, 0, wireLength);
+        }
+
+        void clear() {
+            frames.setLength(0);
+            wireLength = 0;
+            count = 0;
+        }
+
+        private void writeHeader(byte type, int value) {
+            wire[0] = VERSION;
+            wire[1] = type;
+            writeInt(wire, 2, value);
+        }
+
+        private static byte[] ensureCapacity(byte[] bytes, int minCapacity) {
+            if (minCapacity > bytes.length) {
+                return Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length * 2));
+            }
+            return bytes;
+        }
+
+        private static void writeInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+    }
+
+    private static final class FactoryData {
+        private final String host;
+        private final int port;
+        private final int windowSize;
+        private final int maxPendingWindows;
+        private final int compressionLevel;
+        private final int connectTimeoutMillis;
+        private final int ackTimeoutMillis;
+        private final long reconnectDelayMillis;
+        private final long lingerMillis;
+
+        FactoryData(String host, int port, int windowSize, int maxPendingWindows, int compressionLevel,
+                int connectTimeoutMillis, int ackTimeoutMillis, long reconnectDelayMillis, long lingerMillis) {
+            this.host = host;
+            this.port = port;
+            this.windowSize = windowSize;
+            this.maxPendingWindows = maxPendingWindows;
+            this.compressionLevel = compressionLevel;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.ackTimeoutMillis = ackTimeoutMillis;
+            this.reconnectDelayMillis = reconnectDelayMillis;
+            this.lingerMillis = lingerMillis;
+        }
+    }
+
+    private static final class LumberjackManagerFactory implements ManagerFactory<LumberjackManager, FactoryData> {
+        @Override
+        public LumberjackManager createManager(String name, FactoryData data) {
+            return new LumberjackManager(null, name, data);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package se.fnord.log4j2.logstash;
+
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The encoding of rendered events.
+ */
+public enum OutputFormat {
+    /**
+     * JSON text, one event per line.
+     */
+    JSON("application/json", UTF_8) {
+        @Override
+        JsonBuffer newBuffer(int capacity) {
+            return new JsonBuffer(capacity);
+        }
+    },
+    /**
+     * CBOR (RFC 8949), one self-delimiting data item per event. The string form of an event has one char per byte,
+     * so that it encodes back to the same bytes with the ISO-8859-1 charset of the layout.
+     */
+    CBOR("application/cbor", ISO_8859_1) {
+        @Override
+        JsonBuffer newBuffer(int capacity) {
+            return new CborBuffer(capacity);
+        }
+    };
+
+    private final String contentType;
+    private final Charset charset;
+
+    OutputFormat(String contentType, Charset charset) {
+        this.contentType = contentType;
+        this.charset = charset;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    abstract JsonBuffer newBuffer(int capacity);
+}
@@ -0,0 +1,416 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.io.Serializable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes events for an output stream appender, like a file or console appender, on a number of worker threads, and
+ * writes them to the output of that appender in the order they were appended.
+ *
+ * Events are handed to the workers in turn, and every worker has a queue of encoded events, so that a writer thread
+ * restores the order by taking events from the queues in the same turn. Every event holds on to the buffer it was
+ * encoded into until it is written, and the buffers are reused, so that appending blocks when a worker has
+ * {@code queueSize} events that are not yet written. That wait happens under the lock that keeps events in the order
+ * they were appended, so every thread appending to the appender waits with it. Appending fails rather than blocks for
+ * good if the writer, or the worker the event is handed to, has died. The output is flushed whenever the writer has
+ * caught up with the workers.
+ *
+ * The referenced appender is bypassed, apart from its layout and output, so its filters are not applied.
+ */
+@Plugin(name = "ParallelEncoding", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE,
+        printObject = true)
+public final class ParallelEncodingAppender extends AbstractAppender {
+    private static final Slot STOP = new Slot(null);
+    private static final int SLOT_SIZE = 1024;
+    private static final int MAX_SLOT_SIZE = Math.max(SLOT_SIZE,
+            Integer.getInteger("log4j.layoutStringBuilder.maxSize", 2 * 1024));
+    private static final long WAIT_MILLIS = 100;
+
+    private final Configuration configuration;
+    private final String appenderRef;
+    private final Worker[] workers;
+    private final Thread writer;
+    private Layout<? extends Serializable> layout;
+    private OutputStreamManager destination;
+    private long nextWorker;
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<ParallelEncodingAppender> {
+
+        @PluginElement("AppenderRef")
+        @Required
+        private AppenderRef appenderRef;
+
+        @PluginBuilderAttribute
+        private int workers = 2;
+
+        @PluginBuilderAttribute
+        private int queueSize = 128;
+
+        public Builder() {
+            super();
+        }
+
+        @Override
+        public ParallelEncodingAppender build() {
+            if (workers < 1) {
+                throw new IllegalArgumentException("workers must be at least 1");
+            }
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("queueSize must be at least 1");
+            }
+            return new ParallelEncodingAppender(getName(), getFilter(), isIgnoreExceptions(), getPropertyArray(),
+                    getConfiguration(), appenderRef.getRef(), workers, queueSize);
+        }
+
+        public AppenderRef getAppenderRef() {
+            return appenderRef;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * @param appenderRef the output stream appender to encode events for
+         */
+        public B setAppenderRef(AppenderRef appenderRef) {
+            this.appenderRef = appenderRef;
+            return asBuilder();
+        }
+
+        /**
+         * @param workers the number of threads encoding events
+         */
+        public B setWorkers(int workers) {
+            this.workers = workers;
+            return asBuilder();
+        }
+
+        /**
+         * @param queueSize the number of events each worker may have encoded or waiting to be encoded
+         */
+        public B setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return asBuilder();
+        }
+    }
+
+    private ParallelEncodingAppender(String name, Filter filter, boolean ignoreExceptions, Property[] properties,
+            Configuration configuration, String appenderRef, int workers, int queueSize) {
+        super(name, filter, null, ignoreExceptions, properties);
+        this.configuration = configuration;
+        this.appenderRef = appenderRef;
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(name + "-encoder-" + i, queueSize);
+        }
+        this.writer = new Thread(this::write, name + "-writer");
+        this.writer.setDaemon(true);
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    /**
+     * @return the layout of the referenced appender, once started
+     */
+    @Override
+    public Layout<? extends Serializable> getLayout() {
+        return layout;
+    }
+
+    @Override
+    public void start() {
+        Appender appender = configuration != null ? configuration.getAppender(appenderRef) : null;
+        if (!(appender instanceof AbstractOutputStreamAppender)) {
+            LOGGER.error("No output stream appender named {} for {}", appenderRef, getName());
+            return;
+        }
+        layout = appender.getLayout();
+        destination = ((AbstractOutputStreamAppender<?>) appender).getManager();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        writer.start();
+        super.start();
+    }
+
+    // Events are handed to the workers in turn, so that the writer knows which worker has the next one. Waiting for a
+    // free slot outside the lock would let a later event overtake an earlier one of the same worker
+    @Override
+    public void append(LogEvent event) {
+        synchronized (this) {
+            if (!isStarted()) {
+                throw new AppenderLoggingException(getName() + " is not started");
+            }
+            Worker worker = workers[(int) (nextWorker++ % workers.length)];
+            Slot slot = take(worker.free, worker);
+            slot.event = event.toImmutable();
+            put(worker.input, slot, worker);
+        }
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        if (writer.isAlive()) {
+            synchronized (this) {
+                for (int i = 0; i < workers.length; i++) {
+                    put(workers[(int) (nextWorker++ % workers.length)].input, STOP);
+                }
+            }
+            try {
+                if (timeout > 0) {
+                    writer.join(timeUnit.toMillis(timeout));
+                } else {
+                    writer.join();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped &= !writer.isAlive();
+        }
+        setStopped();
+        return stopped;
+    }
+
+    private void write() {
+        long next = 0;
+        while (true) {
+            Worker worker = workers[(int) (next++ % workers.length)];
+            Slot slot = takeOutput(worker);
+            if (slot == null) {
+                LOGGER.error("Encoder {} of {} has died, no more events are written", worker.thread.getName(),
+                        getName());
+                destination.flush();
+                return;
+            }
+            if (slot == STOP) {
+                destination.flush();
+                return;
+            }
+            try {
+                if (slot.failure != null) {
+                    error("Unable to encode event", slot.event, slot.failure);
+                } else {
+                    destination.writeBytes(slot.bytes.bytes(), 0, slot.bytes.length());
+                    if (workers[(int) (next % workers.length)].output.isEmpty()) {
+                        destination.flush();
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                error("Unable to write event", slot.event, e);
+            }
+            slot.clear();
+            put(worker.free, slot);
+        }
+    }
+
+    // Workers hand over every slot, failed or not, so one is only missing if the thread of the worker is gone
+    private static Slot takeOutput(Worker worker) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Slot slot = worker.output.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (slot != null) {
+                        return slot;
+                    }
+                    if (!worker.thread.isAlive() && worker.output.isEmpty()) {
+                        return null;
+                    }
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkAlive(Worker worker) {
+        if (!writer.isAlive() || !worker.thread.isAlive()) {
+            throw new AppenderLoggingException(getName() + " is no longer writing events");
+        }
+    }
+
+    // Waits in steps, checking that the threads that will free a slot are still there
+    private Slot take(BlockingQueue<Slot> queue, Worker worker) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Slot slot = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (slot != null) {
+                        return slot;
+                    }
+                    checkAlive(worker);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void put(BlockingQueue<Slot> queue, Slot slot, Worker worker) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (queue.offer(slot, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                    checkAlive(worker);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Slot take(BlockingQueue<Slot> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<Slot> queue, Slot slot) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(slot);
+                    return;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * An event and the buffer it is encoded into.
+     */
+    private static final class Slot {
+        private final GrowableByteDestination bytes;
+        private LogEvent event;
+        private Throwable failure;
+
+        Slot(GrowableByteDestination bytes) {
+            this.bytes = bytes;
+        }
+
+        void clear() {
+            bytes.trimToMaxSize(MAX_SLOT_SIZE);
+            event = null;
+            failure = null;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Slot> free;
+        private final BlockingQueue<Slot> input;
+        private final BlockingQueue<Slot> output;
+        private final Thread thread;
+
+        Worker(String name, int queueSize) {
+            this.free = new ArrayBlockingQueue<>(queueSize);
+            this.input = new ArrayBlockingQueue<>(queueSize + 1);
+            this.output = new ArrayBlockingQueue<>(queueSize + 1);
+            for (int i = 0; i < queueSize; i++) {
+                free.add(new Slot(new GrowableByteDestination(SLOT_SIZE)));
+            }
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Slot slot = take(input);
+                if (slot != STOP) {
+                    try {
+                        slot.bytes.encode(slot.event, layout);
+                    }
+                    // Even errors, so that the writer is not left waiting for the slot
+                    catch (Throwable t) {
+                        slot.failure = t;
+                    }
+                }
+                put(output, slot);
+                if (slot == STOP) {
+                    return;
+                }
+            }
+        }
+    }
+}
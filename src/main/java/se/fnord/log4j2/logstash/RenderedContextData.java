@@ -0,0 +1,109 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringMap;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last thread context rendered with a set of {@link EncodingBuffers}, so that a run of events with the
+ * same context can reuse the rendered fields rather than rendering them again.
+ *
+ * The context is considered unchanged if it is the same frozen map as last time, or if it is an indexed map holding
+ * the very same key and value instances as last time. Values are compared by identity, so a mutable value that is
+ * changed in place between two events is not detected. Instances must not be shared between threads.
+ */
+final class RenderedContextData {
+    private ContextDataWriter writer;
+    private ReadOnlyStringMap contextData;
+    private String[] keys = new String[16];
+    private Object[] values = new Object[16];
+    private int size = -1;
+    private byte[] rendered = new byte[256];
+    private int renderedLength;
+
+    void append(ReadOnlyStringMap contextData, ContextDataWriter writer, JsonBuffer jsonBuffer) {
+        if (!isUnchanged(contextData, writer)) {
+            render(contextData, writer, jsonBuffer);
+            return;
+        }
+        jsonBuffer.append(rendered, 0, renderedLength);
+    }
+
+    private boolean isUnchanged(ReadOnlyStringMap contextData, ContextDataWriter writer) {
+        if (writer != this.writer) {
+            return false;
+        }
+        if (contextData == this.contextData && contextData instanceof StringMap && ((StringMap) contextData).isFrozen()) {
+            return true;
+        }
+        if (size < 0 || !(contextData instanceof IndexedReadOnlyStringMap) || contextData.size() != size) {
+            return false;
+        }
+        IndexedReadOnlyStringMap indexed = (IndexedReadOnlyStringMap) contextData;
+        for (int i = 0; i < size; i++) {
+            if (indexed.getKeyAt(i) != keys[i] || indexed.getValueAt(i) != values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void render(ReadOnlyStringMap contextData, ContextDataWriter writer, JsonBuffer jsonBuffer) {
+        int start = jsonBuffer.length();
+        contextData.forEach(writer, jsonBuffer);
+
+        renderedLength = jsonBuffer.length() - start;
+        if (renderedLength > rendered.length) {
+            rendered = new byte[Math.max(renderedLength, rendered.length * 2)];
+        }
+        System.arraycopy(jsonBuffer.bytes(), start, rendered, 0, renderedLength);
+        this.writer = writer;
+        this.contextData = contextData;
+        snapshot(contextData);
+    }
+
+    private void snapshot(ReadOnlyStringMap contextData) {
+        clearSnapshot();
+        if (!(contextData instanceof IndexedReadOnlyStringMap)) {
+            return;
+        }
+        IndexedReadOnlyStringMap indexed = (IndexedReadOnlyStringMap) contextData;
+        int size = indexed.size();
+        if (size > keys.length) {
+            keys = new String[Math.max(size, keys.length * 2)];
+            values = new Object[keys.length];
+        }
+        for (int i = 0; i < size; i++) {
+            keys[i] = indexed.getKeyAt(i);
+            values[i] = indexed.getValueAt(i);
+        }
+        this.size = size;
+    }
+
+    private void clearSnapshot() {
+        if (size > 0) {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+        }
+        size = -1;
+    }
+
+    /**
+     * Forgets the rendered context, and releases the memory held for it if it has grown past {@code maxSize}.
+     *
+     * @return whether the memory was released
+     */
+    boolean trimToMaxSize(int maxSize) {
+        if (rendered.length > maxSize) {
+            rendered = new byte[maxSize];
+            renderedLength = 0;
+            writer = null;
+            contextData = null;
+            clearSnapshot();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,111 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes events as length-prefixed frames into a memory-mapped ring file, for a local shipper to read with a
+ * {@link SpoolReader} or its own implementation of the format.
+ *
+ * The layout defaults to a {@link LogstashLayoutV1}.
+ */
+@Plugin(name = "Spool", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class SpoolAppender extends AbstractAppender {
+    private final SpoolManager manager;
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<SpoolAppender> {
+
+        @PluginBuilderAttribute
+        @Required
+        private String fileName;
+
+        @PluginBuilderAttribute
+        private int capacity = 64 * 1024 * 1024;
+
+        public Builder() {
+            super();
+        }
+
+        @Override
+        public SpoolAppender build() {
+            if (capacity < 4096 || capacity > Integer.MAX_VALUE - SpoolReader.HEADER_LENGTH - 7) {
+                throw new IllegalArgumentException("capacity must be between 4096 and 2 GiB");
+            }
+            Layout<? extends Serializable> layout = getLayout();
+            if (layout == null) {
+                layout = LogstashLayoutV1.newBuilder().setConfiguration(getConfiguration()).build();
+            }
+            // Frames are aligned to 8 bytes, so the ring is too
+            SpoolManager manager = SpoolManager.getManager(fileName, (capacity + 7) & ~7);
+            if (manager == null) {
+                LOGGER.error("Unable to open spool file {} for {}", fileName, getName());
+                return null;
+            }
+            return new SpoolAppender(getName(), getFilter(), layout, isIgnoreExceptions(), getPropertyArray(),
+                    manager);
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public B setFileName(String fileName) {
+            this.fileName = fileName;
+            return asBuilder();
+        }
+
+        /**
+         * @param capacity the size in bytes of the ring, which is only used when the spool file is created
+         */
+        public B setCapacity(int capacity) {
+            this.capacity = capacity;
+            return asBuilder();
+        }
+    }
+
+    private SpoolAppender(String name, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions,
+            Property[] properties, SpoolManager manager) {
+        super(name, filter, layout, ignoreExceptions, properties);
+        this.manager = manager;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    public SpoolManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        manager.write(event, getLayout());
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        stopped &= manager.stop(timeout, timeUnit);
+        setStopped();
+        return stopped;
+    }
+}
@@ -0,0 +1,190 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static se.fnord.log4j2.logstash.SpoolReader.CAPACITY_OFFSET;
+import static se.fnord.log4j2.logstash.SpoolReader.CURSOR_LENGTH;
+import static se.fnord.log4j2.logstash.SpoolReader.CURSOR_SUFFIX;
+import static se.fnord.log4j2.logstash.SpoolReader.FRAME_HEADER_LENGTH;
+import static se.fnord.log4j2.logstash.SpoolReader.HEADER_LENGTH;
+import static se.fnord.log4j2.logstash.SpoolReader.MAGIC;
+import static se.fnord.log4j2.logstash.SpoolReader.checksum;
+import static se.fnord.log4j2.logstash.SpoolReader.frameLength;
+
+/**
+ * Writes events as frames into a memory-mapped ring file, in the format described by {@link SpoolReader}.
+ *
+ * Writers encode events on their own thread and then claim the space of their frame by advancing the write cursor
+ * with a compare-and-set, so that they only contend for the cursor and never for a lock. The space up to the position
+ * in the cursor file is free to reuse; events that do not fit before it are rejected. When the spool is opened, the
+ * write cursor is recovered by reading the complete frames that follow the cursor file position, so that partially
+ * written frames left by a crash are overwritten.
+ */
+public class SpoolManager extends AbstractManager {
+    private static final ManagerFactory<SpoolManager, FactoryData> FACTORY = new SpoolManagerFactory();
+
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer cursor;
+    private final int capacity;
+    private final AtomicLong writePosition;
+    private final ThreadLocal<Writer> writers;
+
+    protected SpoolManager(LoggerContext loggerContext, String name, MappedByteBuffer data, int capacity,
+            MappedByteBuffer cursor) {
+        super(loggerContext, name);
+        this.data = data;
+        this.cursor = cursor;
+        this.capacity = capacity;
+        this.writePosition = new AtomicLong(recoverWritePosition(data, capacity, cursor.getLong(0)));
+        this.writers = ThreadLocal.withInitial(() -> new Writer(data.duplicate()));
+    }
+
+    public static SpoolManager getManager(String fileName, int capacity) {
+        return getManager(fileName, FACTORY, new FactoryData(capacity));
+    }
+
+    private static long recoverWritePosition(ByteBuffer data, int capacity, long readPosition) {
+        SpoolReader reader = new SpoolReader(data, capacity, null, readPosition);
+        while (reader.getPosition() - readPosition < capacity && reader.next() != null) {
+            // Skip complete frames
+        }
+        return reader.getPosition();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the position after the last frame claimed by a writer
+     */
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * @return the position up to which a reader has consumed events
+     */
+    public long getReadPosition() {
+        return cursor.getLong(0);
+    }
+
+    /**
+     * Writes an event to the spool.
+     *
+     * @throws AppenderLoggingException if the event does not fit in the space that is free
+     */
+    public void write(LogEvent event, Layout<?> layout) {
+        Writer writer = writers.get();
+        GrowableByteDestination bytes = writer.bytes;
+        bytes.setLength(0);
+        int length = bytes.encode(event, layout);
+        int frameLength = frameLength(length);
+        if (frameLength > capacity) {
+            throw new AppenderLoggingException("An event of " + length + " bytes does not fit in " + getName());
+        }
+
+        long current;
+        long position;
+        do {
+            current = writePosition.get();
+            int remaining = capacity - offset(current);
+            position = frameLength > remaining ? current + remaining : current;
+            if (position + frameLength - getReadPosition() > capacity) {
+                throw new AppenderLoggingException(getName() + " is full");
+            }
+        } while (!writePosition.compareAndSet(current, position + frameLength));
+
+        ByteBuffer view = writer.view;
+        if (position != current) {
+            int offset = offset(current);
+            view.putInt(offset + 4, checksum(writer.crc, writer.positionBytes, current));
+            view.putInt(offset, (int) (current - position));
+        }
+        int offset = offset(position);
+        view.clear();
+        view.position(offset + FRAME_HEADER_LENGTH);
+        view.put(bytes.bytes(), 0, length);
+        checksum(writer.crc, writer.positionBytes, position);
+        writer.crc.update(bytes.bytes(), 0, length);
+        view.putInt(offset + 4, (int) writer.crc.getValue());
+        view.putInt(offset, length);
+    }
+
+    private int offset(long position) {
+        return (int) (position % capacity);
+    }
+
+    @Override
+    protected boolean releaseSub(long timeout, TimeUnit timeUnit) {
+        data.force();
+        return true;
+    }
+
+    /**
+     * The state of a thread writing to the spool.
+     */
+    private static final class Writer {
+        private final GrowableByteDestination bytes = new GrowableByteDestination(1024);
+        private final CRC32 crc = new CRC32();
+        private final byte[] positionBytes = new byte[8];
+        private final ByteBuffer view;
+
+        Writer(ByteBuffer view) {
+            this.view = view;
+        }
+    }
+
+    private static final class FactoryData {
+        private final int capacity;
+
+        FactoryData(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class SpoolManagerFactory implements ManagerFactory<SpoolManager, FactoryData> {
+        @Override
+        public SpoolManager createManager(String name, FactoryData data) {
+            try (RandomAccessFile file = new RandomAccessFile(name, "rw");
+                 RandomAccessFile cursorFile = new RandomAccessFile(name + CURSOR_SUFFIX, "rw")) {
+                int capacity = data.capacity;
+                if (file.length() == 0) {
+                    file.setLength(HEADER_LENGTH + (long) capacity);
+                    file.writeInt(MAGIC);
+                    file.writeInt(capacity);
+                    cursorFile.setLength(0);
+                } else if (file.length() < HEADER_LENGTH || file.readInt() != MAGIC) {
+                    LOGGER.error("{} is not a spool file", name);
+                    return null;
+                } else {
+                    file.seek(CAPACITY_OFFSET);
+                    capacity = file.readInt();
+                    if (capacity != data.capacity) {
+                        LOGGER.warn("Using the capacity {} of the existing spool {}", capacity, name);
+                    }
+                }
+                MappedByteBuffer cursor = SpoolReader.map(cursorFile, 0, CURSOR_LENGTH);
+                return new SpoolManager(null, name, SpoolReader.map(file, HEADER_LENGTH, capacity), capacity,
+                        cursor);
+            }
+            catch (IOException e) {
+                LOGGER.error("Unable to open spool {}", name, e);
+                return null;
+            }
+        }
+    }
+}
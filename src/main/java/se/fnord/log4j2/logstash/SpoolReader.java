@@ -0,0 +1,144 @@
+package se.fnord.log4j2.logstash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the events written to a spool by a {@link SpoolAppender}, as views of the mapped file.
+ *
+ * The spool file starts with a header of {@value #HEADER_LENGTH} bytes: the magic number {@code 0x4c535031}
+ * ({@code "LSP1"}) and the capacity of the ring that follows it, both as big-endian ints. Frames are written at
+ * increasing positions, wrapping around at the capacity, and aligned to 8 bytes. Each frame has a header of the
+ * length of the event (an int), and the CRC-32 of the position of the frame (a long) followed by the event (an int).
+ * A frame that does not fit before the end of the ring is preceded by padding up to the end, a header with the
+ * negated length of the padding and the CRC-32 of its position.
+ *
+ * A frame is complete when its checksum matches, which tells unwritten, partially written and stale frames from
+ * earlier laps of the ring apart from new ones. The position up to which events have been consumed is stored as a
+ * big-endian long at the start of the cursor file, named like the spool file with {@value #CURSOR_SUFFIX} appended,
+ * and space before it is reused by the appender.
+ */
+public final class SpoolReader implements Closeable {
+    static final int MAGIC = 0x4c535031;
+    static final int HEADER_LENGTH = 64;
+    static final int CAPACITY_OFFSET = 4;
+    static final int FRAME_HEADER_LENGTH = 8;
+    static final int CURSOR_LENGTH = 64;
+    static final String CURSOR_SUFFIX = ".cursor";
+
+    private final ByteBuffer data;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final MappedByteBuffer cursor;
+    private final CRC32 crc = new CRC32();
+    private final byte[] positionBytes = new byte[8];
+    private long position;
+
+    SpoolReader(ByteBuffer data, int capacity, MappedByteBuffer cursor, long position) {
+        this.data = data;
+        this.view = data.duplicate();
+        this.capacity = capacity;
+        this.cursor = cursor;
+        this.position = position;
+    }
+
+    /**
+     * Opens a spool to read events from the position stored in its cursor file.
+     */
+    public static SpoolReader open(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+             RandomAccessFile cursorFile = new RandomAccessFile(fileName + CURSOR_SUFFIX, "rw")) {
+            if (file.length() < HEADER_LENGTH || file.readInt() != MAGIC) {
+                throw new IOException(fileName + " is not a spool file");
+            }
+            int capacity = file.readInt();
+            ByteBuffer data = map(file, HEADER_LENGTH, capacity);
+            MappedByteBuffer cursor = map(cursorFile, 0, CURSOR_LENGTH);
+            return new SpoolReader(data, capacity, cursor, cursor.getLong(0));
+        }
+    }
+
+    static MappedByteBuffer map(RandomAccessFile file, long offset, int length) throws IOException {
+        if (file.length() < offset + length) {
+            file.setLength(offset + length);
+        }
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, length);
+    }
+
+    static int frameLength(int eventLength) {
+        return (FRAME_HEADER_LENGTH + eventLength + 7) & ~7;
+    }
+
+    static int checksum(CRC32 crc, byte[] positionBytes, long position) {
+        crc.reset();
+        for (int i = 0; i < 8; i++) {
+            positionBytes[i] = (byte) (position >>> (56 - 8 * i));
+        }
+        crc.update(positionBytes, 0, 8);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the position of the next event
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the next complete event, if there is one. The returned buffer is reused by the next call, and the
+     * event may be overwritten once it has been {@link #commit() committed}.
+     *
+     * @return a view of the next event, or null if the next event has not been written yet
+     */
+    public ByteBuffer next() {
+        while (true) {
+            int offset = (int) (position % capacity);
+            int length = data.getInt(offset);
+            int checksum = data.getInt(offset + 4);
+            if (length < 0) {
+                if (-length != capacity - offset || checksum != checksum(crc, positionBytes, position)) {
+                    return null;
+                }
+                position -= length;
+                continue;
+            }
+            if (length == 0 || length > capacity - offset - FRAME_HEADER_LENGTH) {
+                return null;
+            }
+            view.clear();
+            view.position(offset + FRAME_HEADER_LENGTH).limit(offset + FRAME_HEADER_LENGTH + length);
+            checksum(crc, positionBytes, position);
+            crc.update(view);
+            if (checksum != (int) crc.getValue()) {
+                return null;
+            }
+            view.position(offset + FRAME_HEADER_LENGTH);
+            position += frameLength(length);
+            return view;
+        }
+    }
+
+    /**
+     * Stores the position of the next event in the cursor file, which lets the appender reuse the space of the
+     * events read so far.
+     */
+    public void commit() {
+        cursor.putLong(0, position);
+    }
+
+    /**
+     * Closes the reader. The mapped files are unmapped when the reader is garbage collected.
+     */
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.force();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * Computes a stable 64-bit fingerprint of a throwable from its class, its frames and those of its causes.
+ *
+ * Messages and suppressed exceptions are not part of the hash, since they often differ between occurrences of what
+ * is the same failure. The hash only depends on the text of class names, method names, file names and line
+ * numbers (using FNV-1a), so it is stable between JVMs running the same code.
+ */
+final class StackTraceHash {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_CAUSES = 64;
+
+    private StackTraceHash() {
+    }
+
+    static long hash(Throwable throwable) {
+        long hash = FNV_OFFSET_BASIS;
+        Throwable current = throwable;
+        for (int i = 0; current != null && i < MAX_CAUSES; i++) {
+            hash = hash(hash, current.getClass().getName());
+            for (StackTraceElement element : current.getStackTrace()) {
+                hash = hash(hash, element.getClassName());
+                hash = hash(hash, element.getMethodName());
+                hash = hash(hash, element.getFileName());
+                hash = hash(hash, element.getLineNumber());
+            }
+            Throwable cause = current.getCause();
+            current = cause != current ? cause : null;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, CharSequence s) {
+        if (s == null) {
+            return hash(hash, -1);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // Separator, so that the fields "ab", "c" and "a", "bc" do not hash to the same value
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,315 @@
+package se.fnord.log4j2.logstash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Renders a throwable, its causes and suppressed exceptions in the format of {@link Throwable#printStackTrace()},
+ * JSON-escaping it straight into a {@link JsonBuffer}.
+ *
+ * Frames in common with the enclosing trace are elided with {@code "... N more"} and circular references are
+ * reported like the JVM does. Rendered frames can optionally be looked up in and added to a {@link FragmentCache},
+ * which turns the frames of repeated stack traces into plain copies. The number of frames rendered of each throwable
+ * and the depth of nested causes and suppressed exceptions can be limited, which is marked with
+ * {@code "... N frames truncated"} and {@code "Caused by: [TRUNCATED]"} lines, and so can the length of the message
+ * of each throwable. Instances hold scratch state and must not be shared between threads.
+ */
+final class StackTraceRenderer {
+    // Text that needs no escaping, and is encoded the same in every format
+    private static final byte[] MORE = escaped(" more");
+    private static final byte[] CAUSE_CAPTION = escaped("Caused by: ");
+    private static final byte[] SUPPRESSED_CAPTION = escaped("Suppressed: ");
+    private static final byte[] CIRCULAR_REFERENCE = escaped("[CIRCULAR REFERENCE: ");
+    private static final byte[] CIRCULAR_REFERENCE_END = escaped("]");
+    private static final byte[] MESSAGE_SEPARATOR = escaped(": ");
+    private static final byte[] NATIVE_METHOD = escaped("(Native Method)");
+    private static final byte[] UNKNOWN_SOURCE = escaped("(Unknown Source)");
+    private static final byte[] FRAMES_TRUNCATED = escaped(" frames truncated");
+    private static final byte[] TRUNCATED = escaped("[TRUNCATED]");
+
+    // Frames of classes in named modules or loaded by named non-builtin class loaders have a prefix on Java 9+,
+    // which is not worth replicating; those frames are rendered with StackTraceElement.toString().
+    private static final MethodHandle GET_MODULE_NAME = findStackTraceElementGetter("getModuleName");
+    private static final MethodHandle GET_CLASS_LOADER_NAME = findStackTraceElementGetter("getClassLoaderName");
+    private static final String BUILTIN_CLASS_LOADER_NAME = "app";
+
+    private static final ClassValue<Boolean> OVERRIDES_TO_STRING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("toString").getDeclaringClass() != Throwable.class;
+            }
+            catch (NoSuchMethodException e) {
+                return Boolean.TRUE;
+            }
+        }
+    };
+
+    // Encoded like the buffers the renderer renders into, which for JSON means escaped
+    private final byte[] lineSeparator;
+    private final byte[] tab;
+    private final byte[] at;
+    private final byte[] elided;
+
+    private Throwable[] dejaVu = new Throwable[8];
+    private int dejaVuCount;
+    private int maxFrames;
+    private int maxDepth;
+    private int maxMessageLength;
+
+    /**
+     * @param format a buffer of the format to render in
+     */
+    StackTraceRenderer(JsonBuffer format) {
+        this.lineSeparator = format.encodeText(System.lineSeparator());
+        this.tab = format.encodeText("\t");
+        this.at = format.encodeText("\tat ");
+        this.elided = format.encodeText("\t... ");
+    }
+
+    /**
+     * @param frameCache cache of rendered frames, or {@code null} to render every frame
+     */
+    void render(Throwable throwable, FragmentCache<StackTraceElement> frameCache, JsonBuffer jsonBuffer) {
+        render(throwable, frameCache, 0, 0, jsonBuffer);
+    }
+
+    /**
+     * @param frameCache cache of rendered frames, or {@code null} to render every frame
+     * @param maxFrames the maximum number of frames to render of each throwable, or {@code 0} for no limit
+     * @param maxDepth the maximum depth of nested causes and suppressed exceptions to render, or {@code 0} for no
+     *                 limit
+     */
+    void render(Throwable throwable, FragmentCache<StackTraceElement> frameCache, int maxFrames, int maxDepth,
+            JsonBuffer jsonBuffer) {
+        render(throwable, frameCache, maxFrames, maxDepth, 0, jsonBuffer);
+    }
+
+    /**
+     * @param frameCache cache of rendered frames, or {@code null} to render every frame
+     * @param maxFrames the maximum number of frames to render of each throwable, or {@code 0} for no limit
+     * @param maxDepth the maximum depth of nested causes and suppressed exceptions to render, or {@code 0} for no
+     *                 limit
+     * @param maxMessageLength the maximum number of characters of the message of each throwable, or {@code 0} for no
+     *                         limit
+     */
+    void render(Throwable throwable, FragmentCache<StackTraceElement> frameCache, int maxFrames, int maxDepth,
+            int maxMessageLength, JsonBuffer jsonBuffer) {
+        this.maxMessageLength = maxMessageLength;
+        this.maxFrames = maxFrames > 0 ? maxFrames : Integer.MAX_VALUE;
+        this.maxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        try {
+            addDejaVu(throwable);
+            appendThrowableLine(throwable, jsonBuffer);
+            StackTraceElement[] trace = throwable.getStackTrace();
+            appendFrames(0, trace, trace.length, frameCache, jsonBuffer);
+            for (Throwable suppressed : throwable.getSuppressed()) {
+                renderEnclosed(suppressed, trace, SUPPRESSED_CAPTION, 1, 1, frameCache, jsonBuffer);
+            }
+            Throwable cause = throwable.getCause();
+            if (cause != null) {
+                renderEnclosed(cause, trace, CAUSE_CAPTION, 0, 1, frameCache, jsonBuffer);
+            }
+        }
+        finally {
+            clearDejaVu();
+        }
+    }
+
+    // The depth is the indentation of the rendered throwable, the level how many throwables enclose it
+    private void renderEnclosed(Throwable throwable, StackTraceElement[] enclosingTrace, byte[] caption, int depth,
+            int level, FragmentCache<StackTraceElement> frameCache, JsonBuffer jsonBuffer) {
+        if (level > maxDepth) {
+            appendTabs(depth, jsonBuffer);
+            jsonBuffer.append(caption);
+            jsonBuffer.append(TRUNCATED);
+            jsonBuffer.append(lineSeparator);
+            return;
+        }
+        if (isDejaVu(throwable)) {
+            appendTabs(depth, jsonBuffer);
+            jsonBuffer.append(caption);
+            jsonBuffer.append(CIRCULAR_REFERENCE);
+            appendThrowableString(throwable, jsonBuffer);
+            jsonBuffer.append(CIRCULAR_REFERENCE_END);
+            jsonBuffer.append(lineSeparator);
+            return;
+        }
+        addDejaVu(throwable);
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        int framesInCommon = trace.length - 1 - m;
+
+        appendTabs(depth, jsonBuffer);
+        jsonBuffer.append(caption);
+        appendThrowableLine(throwable, jsonBuffer);
+        appendFrames(depth, trace, m + 1, frameCache, jsonBuffer);
+        if (framesInCommon != 0) {
+            appendTabs(depth, jsonBuffer);
+            jsonBuffer.append(elided)
+                    .appendDecimal(framesInCommon)
+                    .append(MORE)
+                    .append(lineSeparator);
+        }
+
+        for (Throwable suppressed : throwable.getSuppressed()) {
+            renderEnclosed(suppressed, trace, SUPPRESSED_CAPTION, depth + 1, level + 1, frameCache, jsonBuffer);
+        }
+        Throwable cause = throwable.getCause();
+        if (cause != null) {
+            renderEnclosed(cause, trace, CAUSE_CAPTION, depth, level + 1, frameCache, jsonBuffer);
+        }
+    }
+
+    private void appendFrames(int depth, StackTraceElement[] trace, int count,
+            FragmentCache<StackTraceElement> frameCache, JsonBuffer jsonBuffer) {
+        int rendered = Math.min(count, maxFrames);
+        for (int i = 0; i < rendered; i++) {
+            appendFrame(depth, trace[i], frameCache, jsonBuffer);
+        }
+        if (rendered < count) {
+            appendTabs(depth, jsonBuffer);
+            jsonBuffer.append(elided)
+                    .appendDecimal(count - rendered)
+                    .append(FRAMES_TRUNCATED)
+                    .append(lineSeparator);
+        }
+    }
+
+    private void appendThrowableLine(Throwable throwable, JsonBuffer jsonBuffer) {
+        appendThrowableString(throwable, jsonBuffer);
+        jsonBuffer.append(lineSeparator);
+    }
+
+    // Equivalent to jsonBuffer.appendEscaped(throwable.toString()), without the concatenation unless overridden
+    private void appendThrowableString(Throwable throwable, JsonBuffer jsonBuffer) {
+        if (OVERRIDES_TO_STRING.get(throwable.getClass())) {
+            jsonBuffer.appendTruncated(String.valueOf(throwable), maxMessageLength);
+            return;
+        }
+        jsonBuffer.appendEscaped(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            jsonBuffer.append(MESSAGE_SEPARATOR);
+            jsonBuffer.appendTruncated(message, maxMessageLength);
+        }
+    }
+
+    private void appendFrame(int depth, StackTraceElement element, FragmentCache<StackTraceElement> frameCache,
+            JsonBuffer jsonBuffer) {
+        appendTabs(depth, jsonBuffer);
+        jsonBuffer.append(at);
+        appendCachedElement(element, frameCache, jsonBuffer);
+        jsonBuffer.append(lineSeparator);
+    }
+
+    /**
+     * Appends the element like {@link #appendElement(StackTraceElement, JsonBuffer)}, through the cache if there is
+     * one.
+     */
+    static void appendCachedElement(StackTraceElement element, FragmentCache<StackTraceElement> frameCache,
+            JsonBuffer jsonBuffer) {
+        if (frameCache == null) {
+            appendElement(element, jsonBuffer);
+            return;
+        }
+        byte[] fragment = frameCache.get(element);
+        if (fragment != null) {
+            jsonBuffer.append(fragment);
+            return;
+        }
+        int start = jsonBuffer.length();
+        appendElement(element, jsonBuffer);
+        frameCache.put(element, jsonBuffer.toByteArray(start));
+    }
+
+    // Equivalent to jsonBuffer.appendEscaped(element.toString())
+    static void appendElement(StackTraceElement element, JsonBuffer jsonBuffer) {
+        if (hasPrefix(element)) {
+            jsonBuffer.appendEscaped(element.toString());
+            return;
+        }
+        jsonBuffer.appendEscaped(element.getClassName())
+                .append((byte) '.')
+                .appendEscaped(element.getMethodName());
+        String fileName = element.getFileName();
+        if (element.isNativeMethod()) {
+            jsonBuffer.append(NATIVE_METHOD);
+        } else if (fileName == null) {
+            jsonBuffer.append(UNKNOWN_SOURCE);
+        } else {
+            jsonBuffer.append((byte) '(')
+                    .appendEscaped(fileName);
+            if (element.getLineNumber() >= 0) {
+                jsonBuffer.append((byte) ':')
+                        .appendDecimal(element.getLineNumber());
+            }
+            jsonBuffer.append((byte) ')');
+        }
+    }
+
+    private static boolean hasPrefix(StackTraceElement element) {
+        if (GET_MODULE_NAME == null || GET_CLASS_LOADER_NAME == null) {
+            return false;
+        }
+        try {
+            String moduleName = (String) GET_MODULE_NAME.invokeExact(element);
+            String classLoaderName = (String) GET_CLASS_LOADER_NAME.invokeExact(element);
+            return moduleName != null || (classLoaderName != null && !BUILTIN_CLASS_LOADER_NAME.equals(classLoaderName));
+        }
+        catch (Throwable t) {
+            return true;
+        }
+    }
+
+    private void appendTabs(int depth, JsonBuffer jsonBuffer) {
+        for (int i = 0; i < depth; i++) {
+            jsonBuffer.append(tab);
+        }
+    }
+
+    private boolean isDejaVu(Throwable throwable) {
+        for (int i = 0; i < dejaVuCount; i++) {
+            if (dejaVu[i] == throwable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addDejaVu(Throwable throwable) {
+        if (dejaVuCount == dejaVu.length) {
+            dejaVu = Arrays.copyOf(dejaVu, dejaVuCount * 2);
+        }
+        dejaVu[dejaVuCount++] = throwable;
+    }
+
+    private void clearDejaVu() {
+        Arrays.fill(dejaVu, 0, dejaVuCount, null);
+        dejaVuCount = 0;
+    }
+
+    private static MethodHandle findStackTraceElementGetter(String name) {
+        try {
+            return MethodHandles.publicLookup()
+                    .findVirtual(StackTraceElement.class, name, MethodType.methodType(String.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static byte[] escaped(String s) {
+        JsonBuffer jsonBuffer = new JsonBuffer(s.length());
+        jsonBuffer.appendEscaped(s);
+        return jsonBuffer.toByteArray();
+    }
+}
@@ -0,0 +1,63 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * Counts occurrences of stack trace hashes within a time window, to decide which occurrences of a repeated stack
+ * trace to render in full.
+ *
+ * The counters are kept in a fixed number of stripes, each a small direct-mapped table guarded by its own lock, so
+ * that threads logging different stack traces rarely contend and no memory is allocated per event. A hash that is
+ * evicted by a colliding one starts over with a new window, which errs on the side of rendering more stack traces.
+ */
+final class StackTraceSuppression {
+    private static final int STRIPES = 16;
+    private static final int SLOTS_PER_STRIPE = 64;
+
+    private static final class Stripe {
+        private final long[] hashes = new long[SLOTS_PER_STRIPE];
+        private final long[] windowStarts = new long[SLOTS_PER_STRIPE];
+        private final long[] counts = new long[SLOTS_PER_STRIPE];
+
+        synchronized long increment(long hash, long timeMillis, long windowMillis) {
+            int slot = (int) (hash >>> 32) & (SLOTS_PER_STRIPE - 1);
+            if (counts[slot] == 0 || hashes[slot] != hash || timeMillis - windowStarts[slot] >= windowMillis) {
+                hashes[slot] = hash;
+                windowStarts[slot] = timeMillis;
+                counts[slot] = 1;
+            } else {
+                counts[slot]++;
+            }
+            return counts[slot];
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long windowMillis;
+    private final int renderEvery;
+
+    /**
+     * @param windowMillis the length of the window in which repeated stack traces are suppressed
+     * @param renderEvery render every Nth occurrence within the window in full, or only the first if {@code <= 0}
+     */
+    StackTraceSuppression(long windowMillis, int renderEvery) {
+        this.windowMillis = windowMillis;
+        this.renderEvery = renderEvery;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records an occurrence of a stack trace.
+     *
+     * @return 0 if this occurrence should be rendered in full, otherwise the number of occurrences of the stack trace
+     * that have been suppressed in the current window, including this one
+     */
+    long suppressed(long hash, long timeMillis) {
+        long occurrence = stripes[(int) hash & (STRIPES - 1)].increment(hash, timeMillis, windowMillis);
+        long n = occurrence - 1;
+        if (renderEvery <= 0) {
+            return n;
+        }
+        return n % renderEvery == 0 ? 0 : n - n / renderEvery;
+    }
+}
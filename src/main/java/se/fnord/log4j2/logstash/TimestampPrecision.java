@@ -0,0 +1,20 @@
+package se.fnord.log4j2.logstash;
+
+/**
+ * The number of fractional second digits rendered in the {@code @timestamp} field.
+ */
+public enum TimestampPrecision {
+    MILLISECONDS(3),
+    MICROSECONDS(6),
+    NANOSECONDS(9);
+
+    private final int digits;
+
+    TimestampPrecision(int digits) {
+        this.digits = digits;
+    }
+
+    int getDigits() {
+        return digits;
+    }
+}
@@ -0,0 +1,110 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.time.Instant;
+
+/**
+ * Renders UTC timestamps in the ISO 8601 format ({@code yyyy-MM-ddTHH:mm:ss.fffZ}) with a configurable number of
+ * fractional digits.
+ *
+ * The date and time down to the second is cached, so for consecutive events within the same second only the
+ * fractional digits are formatted.
+ */
+final class TimestampRenderer {
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int PREFIX_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+    private static final byte[] ZEROS = { '0', '0', '0', '0', '0', '0', '0', '0', '0' };
+
+    private static final class CachedSecond {
+        final long epochSecond;
+        final byte[] prefix;
+
+        CachedSecond(long epochSecond, byte[] prefix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+        }
+    }
+
+    private final int digits;
+    private final int divisor;
+    private volatile CachedSecond cachedSecond = new CachedSecond(0, renderPrefix(0));
+
+    TimestampRenderer(TimestampPrecision precision) {
+        this.digits = precision.getDigits();
+        int divisor = 1;
+        for (int i = precision.getDigits(); i < 9; i++) {
+            divisor *= 10;
+        }
+        this.divisor = divisor;
+    }
+
+    JsonBuffer render(Instant instant, JsonBuffer jsonBuffer) {
+        return render(instant.getEpochSecond(), instant.getNanoOfSecond(), jsonBuffer);
+    }
+
+    JsonBuffer render(long epochSecond, int nanoOfSecond, JsonBuffer jsonBuffer) {
+        CachedSecond cached = cachedSecond;
+        if (cached.epochSecond != epochSecond) {
+            cached = new CachedSecond(epochSecond, renderPrefix(epochSecond));
+            cachedSecond = cached;
+        }
+        jsonBuffer.append(cached.prefix);
+        jsonBuffer.append((byte) '.');
+        appendFraction(nanoOfSecond / divisor, jsonBuffer);
+        return jsonBuffer.append((byte) 'Z'); // Always UTC
+    }
+
+    private void appendFraction(int fraction, JsonBuffer jsonBuffer) {
+        int start = jsonBuffer.length();
+        jsonBuffer.append(ZEROS, 0, digits);
+        byte[] bytes = jsonBuffer.bytes();
+        for (int i = start + digits - 1; fraction != 0; i--) {
+            bytes[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+    }
+
+    // Converts days since the epoch to a proleptic Gregorian date, see
+    // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    static byte[] renderPrefix(long epochSecond) {
+        long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        if (year < 0 || year > 9999) {
+            // Outside of what ISO 8601 can represent with four digits; clamp rather than produce garbage
+            year = year < 0 ? 0 : 9999;
+        }
+        put4(prefix, 0, (int) year);
+        prefix[4] = '-';
+        put2(prefix, 5, month);
+        prefix[7] = '-';
+        put2(prefix, 8, day);
+        prefix[10] = 'T';
+        put2(prefix, 11, secondOfDay / 3600);
+        prefix[13] = ':';
+        put2(prefix, 14, (secondOfDay / 60) % 60);
+        prefix[16] = ':';
+        put2(prefix, 17, secondOfDay % 60);
+        return prefix;
+    }
+
+    private static void put4(byte[] bytes, int offset, int value) {
+        put2(bytes, offset, value / 100);
+        put2(bytes, offset + 2, value % 100);
+    }
+
+    private static void put2(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) ('0' + value / 10);
+        bytes[offset + 1] = (byte) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,117 @@
+package se.fnord.log4j2.logstash;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CborBufferTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper(new CBORFactory());
+
+    private static JsonNode parse(JsonBuffer buffer) {
+        try {
+            return MAPPER.readTree(buffer.toByteArray());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JsonNode value(long value) {
+        JsonBuffer buffer = new CborBuffer(16);
+        buffer.append(value);
+        return parse(buffer);
+    }
+
+    @Test
+    public void encodesIntegers() {
+        long[] values = { 0, 23, 24, 255, 256, 65535, 65536, 4294967295L, 4294967296L, Long.MAX_VALUE,
+                -1, -24, -25, -256, -257, -65537, Long.MIN_VALUE };
+        for (long value : values) {
+            assertEquals(value, value(value).longValue(), Long.toString(value));
+        }
+
+        JsonBuffer buffer = new CborBuffer(16);
+        buffer.append(23).append(24).append(-1);
+        assertArrayEquals(new byte[] { 0x17, 0x18, 0x18, 0x20 }, buffer.toByteArray());
+    }
+
+    @Test
+    public void encodesFloatingPoint() {
+        JsonBuffer single = new CborBuffer(16);
+        single.append(17.5);
+        assertEquals(5, single.length());
+        assertEquals(17.5, parse(single).doubleValue());
+
+        JsonBuffer dbl = new CborBuffer(16);
+        dbl.append(0.1);
+        assertEquals(9, dbl.length());
+        assertEquals(0.1, parse(dbl).doubleValue());
+
+        JsonBuffer flt = new CborBuffer(16);
+        flt.appendValue(0.1f);
+        assertEquals(5, flt.length());
+        assertEquals(0.1f, parse(flt).floatValue());
+    }
+
+    @Test
+    public void encodesStringsOfAllHeaderLengths() {
+        for (int length : new int[] { 0, 23, 24, 255, 256, 65535, 65536 }) {
+            StringBuilder s = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                s.append((char) ('a' + i % 26));
+            }
+            JsonBuffer buffer = new CborBuffer(16);
+            buffer.beginString()
+                    .appendEscaped(s.subSequence(0, length / 2))
+                    .appendEscaped(s.subSequence(length / 2, length))
+                    .endString();
+            assertEquals(s.toString(), parse(buffer).textValue());
+        }
+    }
+
+    @Test
+    public void encodesTextWithoutEscaping() {
+        String s = "\"quoted\"\ttab\n\u00e5\u65e5\uD83D\uDE80\\";
+        JsonBuffer buffer = new CborBuffer(16);
+        buffer.appendString(s);
+        assertEquals(s, parse(buffer).textValue());
+
+        JsonBuffer unpaired = new CborBuffer(16);
+        unpaired.appendString("a\uD83Db");
+        assertEquals("a?b", parse(unpaired).textValue());
+    }
+
+    @Test
+    public void encodesObjectsAndArrays() {
+        JsonBuffer buffer = new CborBuffer(16);
+        int start = buffer.beginObject();
+        buffer.beginFieldName().appendEscaped("array").endFieldName()
+                .beginArray()
+                .appendValue("a")
+                .appendArraySeparator()
+                .appendValue(1)
+                .appendArraySeparator()
+                .appendValue(true)
+                .appendArraySeparator()
+                .appendValue(null)
+                .endArray();
+        buffer.beginFieldName().appendEscaped("empty").endFieldName()
+                .beginArray()
+                .endArray();
+        buffer.endObject(start);
+        buffer.appendEventSeparator();
+
+        JsonNode node = parse(buffer);
+        assertTrue(node.isObject());
+        assertEquals("[\"a\",1,true,null]", node.get("array").toString());
+        assertEquals("[]", node.get("empty").toString());
+    }
+}
@@ -0,0 +1,79 @@
+package se.fnord.log4j2.logstash;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EncodingBuffersSourceTest {
+    private final AtomicInteger created = new AtomicInteger();
+    private final Supplier<EncodingBuffers> factory = () -> {
+        created.incrementAndGet();
+        return new EncodingBuffers(OutputFormat.JSON, 16);
+    };
+
+    @Test
+    public void threadLocalBuffersAreBoundToTheThread() throws InterruptedException {
+        EncodingBuffersSource source = EncodingBuffersSource.threadLocal(factory);
+        EncodingBuffers buffers = source.acquire();
+        source.release(buffers);
+        assertSame(buffers, source.acquire());
+        assertTrue(source.isThreadBound());
+
+        EncodingBuffers[] other = new EncodingBuffers[1];
+        Thread thread = new Thread(() -> other[0] = source.acquire());
+        thread.start();
+        thread.join();
+        assertNotSame(buffers, other[0]);
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void pooledBuffersAreReused() {
+        EncodingBuffersSource source = EncodingBuffersSource.pooled(factory, 2);
+        assertFalse(source.isThreadBound());
+
+        EncodingBuffers first = source.acquire();
+        EncodingBuffers second = source.acquire();
+        assertNotSame(first, second);
+        source.release(first);
+        assertSame(first, source.acquire());
+        source.release(first);
+        source.release(second);
+        source.acquire();
+        source.acquire();
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void poolsAreBounded() {
+        EncodingBuffersSource source = EncodingBuffersSource.pooled(factory, 2);
+        EncodingBuffers[] buffers = new EncodingBuffers[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = source.acquire();
+        }
+        for (EncodingBuffers b : buffers) {
+            source.release(b);
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            source.acquire();
+        }
+        assertEquals(4, created.get());
+    }
+
+    @Test
+    public void autoUsesThreadLocalBuffersOnPlatformThreads() {
+        EncodingBuffersSource threadLocal = EncodingBuffersSource.threadLocal(factory);
+        EncodingBuffersSource auto = EncodingBuffersSource.auto(threadLocal,
+                EncodingBuffersSource.pooled(factory, 2));
+        assertFalse(EncodingBuffersSource.isVirtual(Thread.currentThread()));
+        assertTrue(auto.isThreadBound());
+        assertSame(threadLocal.acquire(), auto.acquire());
+    }
+}
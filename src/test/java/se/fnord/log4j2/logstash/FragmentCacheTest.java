@@ -0,0 +1,38 @@
+package se.fnord.log4j2.logstash;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FragmentCacheTest {
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new FragmentCache<String>(1).capacity());
+        assertEquals(64, new FragmentCache<String>(64).capacity());
+        assertEquals(128, new FragmentCache<String>(65).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new FragmentCache<String>(0));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        FragmentCache<String> cache = new FragmentCache<>(16);
+        assertNull(cache.get("key"));
+        cache.put("key", new byte[] { 1 });
+        assertArrayEquals(new byte[] { 1 }, cache.get("key"));
+        assertArrayEquals(new byte[] { 1 }, cache.get(new String("key")));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsCollidingEntries() {
+        FragmentCache<String> cache = new FragmentCache<>(1);
+        cache.put("a", new byte[] { 1 });
+        cache.put("b", new byte[] { 2 });
+        assertNull(cache.get("a"));
+        assertArrayEquals(new byte[] { 2 }, cache.get("b"));
+    }
+}
@@ -0,0 +1,216 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GzipFileAppenderTest {
+    @TempDir
+    Path directory;
+
+    private GzipFileAppender.Builder<?> appender(Path file) {
+        return GzipFileAppender.newBuilder()
+                .setName("gzip")
+                .setFileName(file.toString());
+    }
+
+    private static LogEvent event(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.INFO)
+                .setLoggerName("logger-name")
+                .setThreadName("thread-name")
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static List<String> lines(String text) {
+        return Arrays.asList(text.split("\n"));
+    }
+
+    // Inflates every member on its own, checking its trailer
+    private static List<String> members(byte[] file) throws DataFormatException {
+        List<String> members = new ArrayList<>();
+        Inflater inflater = new Inflater(true);
+        int offset = 0;
+        while (offset < file.length) {
+            assertEquals(0x1f, file[offset] & 0xff);
+            assertEquals(0x8b, file[offset + 1] & 0xff);
+            inflater.reset();
+            inflater.setInput(file, offset + 10, file.length - offset - 10);
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                member.write(buffer, 0, inflater.inflate(buffer));
+            }
+            int trailer = file.length - inflater.getRemaining();
+            CRC32 crc = new CRC32();
+            crc.update(member.toByteArray());
+            assertEquals((int) crc.getValue(), readIntLE(file, trailer));
+            assertEquals(member.size(), readIntLE(file, trailer + 4));
+            members.add(new String(member.toByteArray(), UTF_8));
+            offset = trailer + 8;
+        }
+        inflater.end();
+        return members;
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private static String gunzip(byte[] file) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(file))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        }
+    }
+
+    @Test
+    public void writesAGzipFile() throws IOException {
+        Path file = directory.resolve("events.json.gz");
+        GzipFileAppender appender = appender(file)
+                .setLayout(LogstashLayoutV1.newBuilder().setHost("host-name").build())
+                .build();
+        appender.start();
+        appender.append(event("first"));
+        appender.append(event("second"));
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+
+        List<String> lines = lines(gunzip(Files.readAllBytes(file)));
+        assertEquals(2, lines.size());
+        assertThatJson(lines.get(0))
+                .isEqualTo("{\"@version\":1,\"source_host\":\"host-name\","
+                        + "\"@timestamp\":\"1970-01-01T00:00:00.001Z\",\"level\":\"INFO\","
+                        + "\"level_value\":6,\"thread_name\":\"thread-name\",\"logger_name\":\"logger-name\","
+                        + "\"message\":\"first\"}");
+        assertThatJson(lines.get(1)).node("message").isEqualTo("second");
+    }
+
+    @Test
+    public void writesEventsOfBatchEncodingLayoutsOnAsyncThreads() throws IOException, InterruptedException {
+        Path file = directory.resolve("events.json.gz");
+        GzipFileAppender appender = appender(file)
+                .setLayout(LogstashLayoutV1Test.batchEncodingLayout())
+                .build();
+        appender.start();
+        LogstashLayoutV1Test.onLog4jThread(() -> {
+            appender.append(event("first"));
+            appender.append(event("second"));
+        });
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+
+        List<String> lines = lines(gunzip(Files.readAllBytes(file)));
+        assertEquals(2, lines.size());
+        assertThatJson(lines.get(0)).node("message").isEqualTo("first");
+        assertThatJson(lines.get(1)).node("message").isEqualTo("second");
+    }
+
+    @Test
+    public void endsBlocksBySize() throws IOException, DataFormatException {
+        Path file = directory.resolve("events.json.gz");
+        GzipFileAppender appender = appender(file)
+                .setBlockSize(1000)
+                .build();
+        appender.start();
+        for (int i = 0; i < 100; i++) {
+            appender.append(event("event " + i));
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+
+        List<String> members = members(Files.readAllBytes(file));
+        assertTrue(members.size() > 1);
+        assertEquals(appender.getManager().getBlocks(), members.size());
+        int next = 0;
+        for (String member : members) {
+            assertTrue(member.endsWith("\n"));
+            for (String line : lines(member)) {
+                assertThatJson(line).node("message").isEqualTo("event " + next++);
+            }
+        }
+        assertEquals(100, next);
+    }
+
+    @Test
+    public void endsBlocksByAge() throws IOException, InterruptedException, DataFormatException {
+        Path file = directory.resolve("events.json.gz");
+        GzipFileAppender appender = appender(file)
+                .setBlockMillis(50)
+                .build();
+        appender.start();
+        appender.append(event("first"));
+        appender.append(event("second"));
+        Thread.sleep(100);
+        appender.append(event("third"));
+        assertEquals(1, appender.getManager().getBlocks());
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+
+        List<String> members = members(Files.readAllBytes(file));
+        assertEquals(2, members.size());
+        assertEquals(2, lines(members.get(0)).size());
+        assertThatJson(members.get(1)).node("message").isEqualTo("third");
+    }
+
+    @Test
+    public void endsBlocksByAgeWithoutFurtherEvents() throws IOException, InterruptedException, DataFormatException {
+        Path file = directory.resolve("events.json.gz");
+        GzipFileAppender appender = appender(file)
+                .setBlockMillis(20)
+                .build();
+        appender.start();
+        appender.append(event("first"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (appender.getManager().getBlocks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        List<String> members = members(Files.readAllBytes(file));
+        assertEquals(1, members.size());
+        assertThatJson(members.get(0)).node("message").isEqualTo("first");
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void appendsToExistingFiles() throws IOException {
+        Path file = directory.resolve("events.json.gz");
+        for (String message : new String[] { "first", "second" }) {
+            GzipFileAppender appender = appender(file).build();
+            appender.start();
+            appender.append(event(message));
+            assertTrue(appender.stop(1, TimeUnit.SECONDS));
+        }
+
+        List<String> lines = lines(gunzip(Files.readAllBytes(file)));
+        assertEquals(2, lines.size());
+        assertThatJson(lines.get(1)).node("message").isEqualTo("second");
+    }
+}
@@ -0,0 +1,125 @@
+package se.fnord.log4j2.logstash;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JsonBufferTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static String escaped(CharSequence s) {
+        return new JsonBuffer(1)
+                .appendEscaped(s)
+                .toString();
+    }
+
+    private static String parse(JsonBuffer buffer) {
+        try {
+            return MAPPER.readTree(buffer.toByteArray()).textValue();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void escapesControlCharacters() {
+        for (char c = 0; c < 0x20; c++) {
+            String expected;
+            switch (c) {
+                case '\b':
+                    expected = "\\b";
+                    break;
+                case '\t':
+                    expected = "\\t";
+                    break;
+                case '\n':
+                    expected = "\\n";
+                    break;
+                case '\f':
+                    expected = "\\f";
+                    break;
+                case '\r':
+                    expected = "\\r";
+                    break;
+                default:
+                    expected = String.format("\\u%04x", (int) c);
+            }
+            assertEquals("a" + expected + "b", escaped("a" + c + "b"), Integer.toString(c));
+        }
+        assertEquals("\\\"quoted\\\" back\\\\slash", escaped("\"quoted\" back\\slash"));
+        assertEquals("\u007f/", escaped("\u007f/"));
+    }
+
+    @Test
+    public void rendersFloatsWithFloatPrecision() {
+        assertEquals("0.1", new JsonBuffer(1).appendValue(0.1f).toString());
+        assertEquals("0.1", new JsonBuffer(1).appendValue(0.1).toString());
+        assertEquals("\"NaN\"", new JsonBuffer(1).appendValue(Float.NaN).toString());
+    }
+
+    @Test
+    public void encodesSurrogatePairs() {
+        String rocket = "\ud83d\ude80";
+        assertArrayEquals(rocket.getBytes(UTF_8), new JsonBuffer(1).appendEscaped(rocket).toByteArray());
+        assertEquals("a" + rocket + rocket + "b", escaped("a" + rocket + rocket + "b"));
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        assertEquals("a?b", escaped("a\ud83db"));
+        assertEquals("a?b", escaped("a\ude80b"));
+        assertEquals("a?", escaped("a\ud83d"));
+        assertEquals("?\ud83d\ude80", escaped("\ude80\ud83d\ude80"));
+        assertEquals("??", escaped("\ud83d\ud83d"));
+    }
+
+    @Test
+    public void encodesMixedText() {
+        String s = "plain \u00e5\u00e4\u00f6 \u65e5\u672c \"\u00e9\"\n\ud83d\ude80\tend";
+        assertEquals(s, parse(new JsonBuffer(1).appendString(s)));
+        assertEquals(s, parse(new JsonBuffer(1).appendString(new StringBuilder(s))));
+        assertArrayEquals(new JsonBuffer(1).appendEscaped(s).toByteArray(),
+                new JsonBuffer(1).appendEscaped(new StringBuilder(s)).toByteArray());
+    }
+
+    @Test
+    public void encodesAllCharactersLikeJackson() throws IOException {
+        StringBuilder s = new StringBuilder();
+        for (char c = 0; c < 0x800; c++) {
+            s.append(c);
+        }
+        s.append("\u65e5\uffff\ud800\udc00\udbff\udfff");
+        String expected = MAPPER.writeValueAsString(s.toString());
+        String actual = new JsonBuffer(1).appendString(s).toString();
+        assertEquals(MAPPER.readTree(expected).textValue(), MAPPER.readTree(actual).textValue());
+    }
+
+    @Test
+    public void appendsLongAsciiTextInOnePass() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            s.append((char) ('a' + i % 26));
+        }
+        JsonBuffer buffer = new JsonBuffer(16);
+        buffer.append((byte) 'x').appendEscaped(s.toString());
+        assertEquals("x" + s, buffer.toString());
+        assertEquals(s.length() + 1, buffer.capacity());
+    }
+
+    @Test
+    public void truncatesLongText() {
+        assertEquals("abc", new JsonBuffer(1).appendTruncated("abc", 3).toString());
+        assertEquals("abc", new JsonBuffer(1).appendTruncated("abc", 0).toString());
+        assertEquals("ab...[truncated 3 chars]", new JsonBuffer(1).appendTruncated("ab\"de", 2).toString());
+        assertEquals("a\\\"...[truncated 1 chars]", new JsonBuffer(1).appendTruncated("a\"e", 2).toString());
+        // Surrogate pairs are kept whole
+        assertEquals("a...[truncated 3 chars]", new JsonBuffer(1).appendTruncated("a\ud83d\ude80b", 2).toString());
+    }
+}
@@ -0,0 +1,117 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.config.NullConfiguration;
+import org.apache.logging.log4j.message.ObjectArrayMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.junit.jupiter.api.Test;
+import se.fnord.taggedmessage.TaggedMessage;
+import se.fnord.taggedmessage.Tags;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LayoutMetricsTest {
+    @Test
+    public void classifiesMessages() {
+        assertEquals(LayoutMetrics.MessageType.SIMPLE, LayoutMetrics.messageType(new SimpleMessage("message")));
+        assertEquals(LayoutMetrics.MessageType.PARAMETERIZED,
+                LayoutMetrics.messageType(new ParameterizedMessage("a {}", "b")));
+        assertEquals(LayoutMetrics.MessageType.PARAMETERIZED,
+                LayoutMetrics.messageType(new ReusableMessageFactory().newMessage("a {}", "b")));
+        assertEquals(LayoutMetrics.MessageType.TAGGED,
+                LayoutMetrics.messageType(new TaggedMessage(Tags.of("key", "value"), null)));
+        assertEquals(LayoutMetrics.MessageType.MAP, LayoutMetrics.messageType(new StringMapMessage()));
+        assertEquals(LayoutMetrics.MessageType.OBJECT_ARRAY,
+                LayoutMetrics.messageType(new ObjectArrayMessage("a", "b")));
+    }
+
+    @Test
+    public void countsEncodeTimesInPowerOfTwoBuckets() {
+        LayoutMetrics metrics = new LayoutMetrics();
+        SimpleMessage message = new SimpleMessage("message");
+        metrics.recordEvent(message, 10, 0);
+        metrics.recordEvent(message, 10, 1023);
+        metrics.recordEvent(message, 10, 1024);
+        metrics.recordEvent(message, 10, 3000);
+        metrics.recordEvent(message, 10, Long.MAX_VALUE);
+
+        long[] bounds = metrics.getEncodeNanosHistogramBounds();
+        assertEquals(1024, bounds[0]);
+        assertEquals(2048, bounds[1]);
+        assertEquals(Long.MAX_VALUE, bounds[bounds.length - 1]);
+        long[] expected = new long[bounds.length];
+        expected[0] = 2;
+        expected[1] = 1;
+        expected[2] = 1;
+        expected[bounds.length - 1] = 1;
+        assertArrayEquals(expected, metrics.getEncodeNanosHistogram());
+        assertEquals(5, metrics.getEventsEncoded());
+        assertEquals(50, metrics.getBytesEncoded());
+    }
+
+    @Test
+    public void registersWithLoggerContext() throws JMException {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        LoggerContext loggerContext = new LoggerContext("layout-metrics-test");
+        Configuration configuration = loggerContext.getConfiguration();
+        ObjectName objectName = LayoutMetrics.objectName(loggerContext.getName(), "json");
+
+        LayoutMetrics replaced = new LayoutMetrics();
+        replaced.register(loggerContext, new DefaultConfiguration(), "json");
+        LayoutMetrics metrics = new LayoutMetrics();
+        metrics.recordBufferTrim();
+        metrics.register(loggerContext, configuration, "json");
+        try {
+            assertTrue(mbs.isRegistered(objectName));
+            assertEquals(1L, mbs.getAttribute(objectName, "BufferTrims"));
+
+            // The layout before a reconfiguration does not unregister its replacement
+            replaced.unregister();
+            assertEquals(1L, mbs.getAttribute(objectName, "BufferTrims"));
+
+            // Nor does a second layout of the same configuration
+            new LayoutMetrics().register(loggerContext, configuration, "json");
+            assertEquals(1L, mbs.getAttribute(objectName, "BufferTrims"));
+
+            metrics.unregister();
+            assertFalse(mbs.isRegistered(objectName));
+        }
+        finally {
+            if (mbs.isRegistered(objectName)) {
+                mbs.unregisterMBean(objectName);
+            }
+        }
+    }
+
+    @Test
+    public void unregistersWhenLoggerContextStops() throws JMException {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        LoggerContext loggerContext = new LoggerContext("layout-metrics-stop-test");
+        ObjectName objectName = LayoutMetrics.objectName(loggerContext.getName(), "json");
+
+        new LayoutMetrics().register(loggerContext, loggerContext.getConfiguration(), "json");
+        try {
+            assertTrue(mbs.isRegistered(objectName));
+            loggerContext.updateLoggers(new NullConfiguration());
+            assertFalse(mbs.isRegistered(objectName));
+        }
+        finally {
+            if (mbs.isRegistered(objectName)) {
+                mbs.unregisterMBean(objectName);
+            }
+        }
+    }
+}
@@ -1,25 +1,41 @@
 package se.fnord.log4j2.logstash;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.OutputStreamManager;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.time.MutableInstant;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.core.util.Log4jThread;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
 import org.apache.logging.log4j.message.ObjectArrayMessage;
 import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringMapMessage;
 import org.apache.logging.log4j.util.SortedArrayStringMap;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import org.junit.jupiter.api.Test;
 import se.fnord.taggedmessage.TaggedMessage;
 import se.fnord.taggedmessage.Tags;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ByteArrayDestination extends OutputStreamManager {
@@ -44,13 +60,6 @@ class ByteArrayDestination extends OutputStreamManager {
 }
 
 public class LogstashLayoutV1Test {
-    @Test
-    public void testAppendTimestamp() {
-        StringBuilder jsonBuilder = new StringBuilder();
-        LogstashLayoutV1.appendTimestamp(1, jsonBuilder);
-        assertEquals("1970-01-01T00:00:00.001Z", jsonBuilder.toString());
-    }
-
     @Test
     public void contentFormatIsEmpty() {
         LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder().build();
@@ -65,18 +74,9 @@ public class LogstashLayoutV1Test {
 
     @Test
     public void testAppendLevelValue() {
-        StringBuilder jsonBuilder = new StringBuilder();
-        LogstashLayoutV1.appendLevelValue(Level.FATAL, jsonBuilder);
-        assertEquals("1", jsonBuilder.toString());
-    }
-
-    @Test
-    public void testAppendThrowable() {
-        IllegalArgumentException test = new IllegalArgumentException("Test");
-        StringBuilder textBuilder = new StringBuilder();
-        StringBuilder jsonBuilder = new StringBuilder();
-        LogstashLayoutV1.appendThrowable(test, textBuilder, jsonBuilder);
-        assertTrue(jsonBuilder.toString().startsWith("java.lang.IllegalArgumentException: Test"));
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        LogstashLayoutV1.appendLevelValue(Level.FATAL, jsonBuffer);
+        assertEquals("1", jsonBuffer.toString());
     }
 
     private static final Log4jLogEvent LOG_EVENT = Log4jLogEvent.newBuilder()
@@ -96,10 +96,14 @@ public class LogstashLayoutV1Test {
     }
 
     private static String encode(LogstashLayoutV1 layout, LogEvent event) {
+        return new String(encodeToBytes(layout, event), UTF_8);
+    }
+
+    private static byte[] encodeToBytes(LogstashLayoutV1 layout, LogEvent event) {
         try (ByteArrayDestination d = new ByteArrayDestination()) {
             layout.encode(event, d);
             d.flush();
-            return new String(d.getBytes(), UTF_8);
+            return d.getBytes();
         }
     }
 
@@ -299,4 +303,763 @@ public class LogstashLayoutV1Test {
         assertEquals(s, toByteArray(layout, event));
         assertEquals(s, encode(layout, event));
     }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void consumesTagsAsJsonText() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder().build();
+        StringBuilder stringBuilder = new StringBuilder("{\"first\":1");
+        Tags.of("text", "a\"b", "number", 42, "boolean", true).forEach(stringBuilder, layout);
+        layout.nullTag("null", stringBuilder);
+        stringBuilder.append('}');
+
+        assertThatJson(stringBuilder.toString())
+                .isEqualTo("{\"first\":1,\"text\":\"a\\\"b\",\"number\":42,\"boolean\":true,\"null\":null}");
+    }
+
+    @Test
+    public void rendersEscapedAndNonAsciiText() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .build();
+        String text = "\"quoted\" \\ \t\n\u0001 \u00e5\u00e4\u00f6 \u65e5\u672c \ud83d\ude80";
+
+        Log4jLogEvent event = Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.DEBUG)
+                .setThreadName(text)
+                .setMessage(new SimpleMessage(text))
+                .build();
+
+        String s = layout.toSerializable(event);
+
+        assertThatJson(s)
+                .node("thread_name").isEqualTo(TextNode.valueOf(text))
+                .node("message").isEqualTo(TextNode.valueOf(text));
+
+        assertEquals(s, toByteArray(layout, event));
+        assertEquals(s, encode(layout, event));
+    }
+
+    @Test
+    public void rendersTimestampWithConfiguredPrecision() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setTimestampPrecision(TimestampPrecision.MICROSECONDS)
+                .build();
+
+        MutableInstant instant = new MutableInstant();
+        instant.initFromEpochSecond(1, 123456789);
+        Log4jLogEvent event = Log4jLogEvent.newBuilder()
+                .setInstant(instant)
+                .setLevel(Level.DEBUG)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+
+        String s = layout.toSerializable(event);
+
+        assertThatJson(s)
+                .node("@timestamp").isEqualTo("1970-01-01T00:00:01.123456Z");
+
+        assertEquals(s, toByteArray(layout, event));
+        assertEquals(s, encode(layout, event));
+    }
+
+    @Test
+    public void rendersStackTraceWithStackFrameCache() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStackFrameCacheSize(256)
+                .build();
+        String stackTrace = printStackTrace(LOG_EVENT.getThrown());
+
+        String s = layout.toSerializable(LOG_EVENT);
+
+        assertThatJson(s)
+                .node("stack_trace").isEqualTo(TextNode.valueOf(stackTrace));
+
+        assertEquals(s, toByteArray(layout, LOG_EVENT));
+        assertEquals(s, encode(layout, LOG_EVENT));
+        assertTrue(layout.getStackFrameCacheHits() > 0);
+        assertTrue(layout.getStackFrameCacheMisses() > 0);
+    }
+
+    private static Log4jLogEvent eventWithThrowable(long timeMillis, Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(timeMillis)
+                .setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("message"))
+                .setThrown(thrown)
+                .build();
+    }
+
+    @Test
+    public void rendersStackHash() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeStackHash(true)
+                .build();
+        String stackTrace = printStackTrace(LOG_EVENT.getThrown());
+        String stackHash = String.format("%016x", StackTraceHash.hash(LOG_EVENT.getThrown()));
+
+        String s = layout.toSerializable(LOG_EVENT);
+
+        assertThatJson(s)
+                .node("stack_hash").isEqualTo(stackHash)
+                .node("stack_trace").isEqualTo(TextNode.valueOf(stackTrace))
+                .node("stack_trace_suppressed").isAbsent();
+
+        assertEquals(s, toByteArray(layout, LOG_EVENT));
+        assertEquals(s, encode(layout, LOG_EVENT));
+    }
+
+    @Test
+    public void suppressesRepeatedStackTracesWithinWindow() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStackTraceSuppressionWindow(1000)
+                .build();
+        Throwable thrown = new IllegalStateException("repeated");
+        String stackHash = String.format("%016x", StackTraceHash.hash(thrown));
+
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_hash").isEqualTo(stackHash)
+                .node("stack_trace").isPresent()
+                .node("stack_trace_suppressed").isAbsent();
+        assertThatJson(layout.toSerializable(eventWithThrowable(2, thrown)))
+                .node("stack_hash").isEqualTo(stackHash)
+                .node("stack_trace").isAbsent()
+                .node("stack_trace_suppressed").isEqualTo(1);
+        assertThatJson(layout.toSerializable(eventWithThrowable(3, thrown)))
+                .node("stack_trace").isAbsent()
+                .node("stack_trace_suppressed").isEqualTo(2);
+        assertThatJson(layout.toSerializable(eventWithThrowable(3, new IllegalArgumentException())))
+                .node("stack_trace").isPresent();
+        assertThatJson(layout.toSerializable(eventWithThrowable(1001, thrown)))
+                .node("stack_trace").isPresent()
+                .node("stack_trace_suppressed").isAbsent();
+    }
+
+    @Test
+    public void rendersEveryNthRepeatedStackTrace() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStackTraceSuppressionWindow(1000)
+                .setStackTraceSuppressionRenderEvery(3)
+                .build();
+        Throwable thrown = new IllegalStateException("repeated");
+
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_trace").isPresent();
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_trace_suppressed").isEqualTo(1);
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_trace_suppressed").isEqualTo(2);
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_trace").isPresent()
+                .node("stack_trace_suppressed").isAbsent();
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, thrown)))
+                .node("stack_trace_suppressed").isEqualTo(3);
+    }
+
+    @Test
+    public void truncatesLongMessagesAndContextValues() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setMaxMessageLength(5)
+                .setMaxContextValueLength(3)
+                .setMaxStackTraceFrames(1)
+                .build();
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setContextData(new SortedArrayStringMap(Collections.singletonMap("key", "value")))
+                .setMessage(new SimpleMessage("long message"))
+                .setThrown(new IllegalStateException("thrown"))
+                .build();
+
+        String expectedStackTrace = "java.lang.IllegalStateException: throw...[truncated 1 chars]"
+                + System.lineSeparator()
+                + "\tat " + event.getThrown().getStackTrace()[0] + System.lineSeparator()
+                + "\t... " + (event.getThrown().getStackTrace().length - 1) + " frames truncated"
+                + System.lineSeparator();
+        assertThatJson(encode(layout, event))
+                .node("message").isEqualTo("long ...[truncated 7 chars]")
+                .node("_key").isEqualTo("val...[truncated 2 chars]")
+                .node("stack_trace").isEqualTo(expectedStackTrace);
+    }
+
+    @Test
+    public void truncatesParametersTagsAndTextOfOtherValues() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setMaxMessageLength(5)
+                .setMaxContextValueLength(3)
+                .setTypedContextValues(true)
+                .setIncludeMessageTemplate(true)
+                .setStructuredMessages(true)
+                .build();
+        // Objects that are not numbers or booleans are rendered as text, which is cut like any other
+        Object longText = Arrays.asList("abcdefgh");
+
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("object", longText);
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setContextData(contextData)
+                .setMessage(new ParameterizedMessage("{} {}", "long parameter", longText))
+                .build();
+        assertThatJson(encode(layout, event))
+                .node("_object").isEqualTo("[ab...[truncated 7 chars]")
+                .node("message_params")
+                .isEqualTo("[\"long ...[truncated 9 chars]\", \"[abcd...[truncated 5 chars]\"]");
+
+        MapMessage<?, Object> mapMessage = new MapMessage<>()
+                .with("object", longText)
+                .with("count", 12345678);
+        assertThatJson(encode(layout, eventWithMessage(mapMessage)))
+                .node("object").isEqualTo("[abcd...[truncated 5 chars]")
+                .node("count").isEqualTo(12345678);
+
+        assertThatJson(encode(layout, eventWithMessage(new ObjectArrayMessage("long parameter"))))
+                .node("message_params").isEqualTo("[\"long ...[truncated 9 chars]\"]");
+
+        assertThatJson(encode(layout, eventWithMessage(new TaggedMessage(Tags.of("text", "long text"), null))))
+                .node("text").isEqualTo("long ...[truncated 4 chars]");
+    }
+
+    @Test
+    public void countsEncodedEventsAndBytes() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setMetrics(true)
+                .build();
+        assertNull(LogstashLayoutV1.newBuilder().build().getMetrics());
+
+        String first = encode(layout, LOG_EVENT);
+        String second = toByteArray(layout, eventWithThrowable(1, new IllegalStateException("counted")));
+        LayoutMetricsMXBean metrics = layout.getMetrics();
+        assertEquals(2, metrics.getEventsEncoded());
+        assertEquals(Long.valueOf(2), metrics.getEventsByMessageType().get("SIMPLE"));
+        assertEquals(first.length() + second.length(), metrics.getBytesEncoded());
+        assertEquals(2 * ",\"message\":\"message\"".length(), metrics.getMessageBytes());
+        assertEquals(",\"_key\":\"value\"".length(), metrics.getContextBytes());
+        assertTrue(metrics.getStackTraceBytes() > 0);
+        assertEquals(2, Arrays.stream(metrics.getEncodeNanosHistogram()).sum());
+
+        long trims = metrics.getBufferTrims();
+        layout.toSerializable(Log4jLogEvent.newBuilder()
+                .setMessage(new SimpleMessage(String.join("", Collections.nCopies(4096, "x"))))
+                .build());
+        assertEquals(trims + 1, metrics.getBufferTrims());
+    }
+
+    @Test
+    public void rendersSameNamesWithAndWithoutNameCache() {
+        LogstashLayoutV1 cached = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setNameCacheSize(1)
+                .build();
+        LogstashLayoutV1 uncached = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setNameCacheSize(0)
+                .build();
+
+        for (String name : new String[] { "first", "second \"escaped\"", "first", new String("first") }) {
+            Log4jLogEvent event = Log4jLogEvent.newBuilder()
+                    .setTimeMillis(1)
+                    .setLevel(Level.DEBUG)
+                    .setThreadName(name)
+                    .setLoggerName(name)
+                    .setMessage(new SimpleMessage("message"))
+                    .build();
+
+            String s = cached.toSerializable(event);
+            assertThatJson(s)
+                    .node("thread_name").isEqualTo(TextNode.valueOf(name))
+                    .node("logger_name").isEqualTo(TextNode.valueOf(name));
+            assertEquals(uncached.toSerializable(event), s);
+            assertEquals(s, encode(cached, event));
+        }
+    }
+
+    private static Log4jLogEvent eventWithTypedContextData() {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("string", "value");
+        contextData.putValue("builder", new StringBuilder("built"));
+        contextData.putValue("long", 42L);
+        contextData.putValue("int", 17);
+        contextData.putValue("double", 1.5);
+        contextData.putValue("nan", Double.NaN);
+        contextData.putValue("boolean", true);
+        contextData.putValue("null", null);
+        contextData.putValue("escaped \"key\"", "escaped \"value\"");
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.DEBUG)
+                .setContextData(contextData)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+    }
+
+    @Test
+    public void rendersContextValuesAsStrings() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .build();
+        Log4jLogEvent event = eventWithTypedContextData();
+
+        String s = layout.toSerializable(event);
+        assertThatJson(s)
+                .node("_string").isEqualTo(TextNode.valueOf("value"))
+                .node("_builder").isEqualTo(TextNode.valueOf("built"))
+                .node("_long").isEqualTo(TextNode.valueOf("42"))
+                .node("_int").isEqualTo(TextNode.valueOf("17"))
+                .node("_double").isEqualTo(TextNode.valueOf("1.5"))
+                .node("_nan").isEqualTo(TextNode.valueOf("NaN"))
+                .node("_boolean").isEqualTo(TextNode.valueOf("true"))
+                .node("_null").isEqualTo(TextNode.valueOf("null"));
+        assertTrue(s.contains(",\"_escaped \\\"key\\\"\":\"escaped \\\"value\\\"\""));
+
+        assertEquals(s, toByteArray(layout, event));
+        assertEquals(s, encode(layout, event));
+    }
+
+    @Test
+    public void rendersTypedContextValues() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setTypedContextValues(true)
+                .build();
+        Log4jLogEvent event = eventWithTypedContextData();
+
+        String s = layout.toSerializable(event);
+        assertThatJson(s)
+                .node("_string").isEqualTo(TextNode.valueOf("value"))
+                .node("_builder").isEqualTo(TextNode.valueOf("built"))
+                .node("_long").isEqualTo(42)
+                .node("_int").isEqualTo(17)
+                .node("_double").isEqualTo(1.5)
+                .node("_nan").isEqualTo(TextNode.valueOf("NaN"))
+                .node("_boolean").isEqualTo(true)
+                .node("_null").isEqualTo(NullNode.getInstance());
+
+        assertEquals(s, toByteArray(layout, event));
+        assertEquals(s, encode(layout, event));
+    }
+
+    private static Log4jLogEvent eventWithContextData(SortedArrayStringMap contextData) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.DEBUG)
+                .setContextData(contextData)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+    }
+
+    @Test
+    public void reusesRenderedThreadContextOnlyWhileUnchanged() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setReuseRenderedThreadContext(true)
+                .build();
+        LogstashLayoutV1 typedLayout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setReuseRenderedThreadContext(true)
+                .setTypedContextValues(true)
+                .build();
+
+        SortedArrayStringMap frozen = new SortedArrayStringMap();
+        frozen.putValue("key", 1);
+        frozen.freeze();
+        assertThatJson(layout.toSerializable(eventWithContextData(frozen)))
+                .node("_key").isEqualTo(TextNode.valueOf("1"));
+        assertThatJson(layout.toSerializable(eventWithContextData(frozen)))
+                .node("_key").isEqualTo(TextNode.valueOf("1"));
+        assertThatJson(typedLayout.toSerializable(eventWithContextData(frozen)))
+                .node("_key").isEqualTo(1);
+
+        // A mutable map that is reused between events, like the garbage-free thread context map
+        SortedArrayStringMap mutable = new SortedArrayStringMap();
+        mutable.putValue("key", "first");
+        assertThatJson(encode(layout, eventWithContextData(mutable)))
+                .node("_key").isEqualTo("first");
+        assertThatJson(encode(layout, eventWithContextData(mutable)))
+                .node("_key").isEqualTo("first");
+        mutable.putValue("key", "second");
+        assertThatJson(encode(layout, eventWithContextData(mutable)))
+                .node("_key").isEqualTo("second");
+        mutable.putValue("other", "value");
+        assertThatJson(encode(layout, eventWithContextData(mutable)))
+                .node("_key").isEqualTo("second")
+                .node("_other").isEqualTo("value");
+        mutable.clear();
+        assertThatJson(encode(layout, eventWithContextData(mutable)))
+                .node("_key").isAbsent();
+    }
+
+    private static Log4jLogEvent eventWithMessage(Message message) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.DEBUG)
+                .setMessage(message)
+                .build();
+    }
+
+    @Test
+    public void rendersMessageTemplateAndParameters() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeMessageTemplate(true)
+                .build();
+
+        Message message = new ParameterizedMessage("User {} fetched {} items in {} ms ({}) {} {}",
+                "alice", 42, 17.5, true, null, new int[] { 1, 2 });
+        String s = layout.toSerializable(eventWithMessage(message));
+        assertThatJson(s).node("message")
+                .isEqualTo(TextNode.valueOf("User alice fetched 42 items in 17.5 ms (true) null [1, 2]"));
+        assertThatJson(s).node("message_template")
+                .isEqualTo(TextNode.valueOf("User {} fetched {} items in {} ms ({}) {} {}"));
+        assertThatJson(s).node("message_params")
+                .isEqualTo("[\"alice\", 42, 17.5, true, null, \"[1, 2]\"]");
+
+        assertThatJson(layout.toSerializable(eventWithMessage(new SimpleMessage("No {} here"))))
+                .node("message").isEqualTo(TextNode.valueOf("No {} here"))
+                .node("message_template").isAbsent();
+    }
+
+    @Test
+    public void rendersReusableMessageTemplateWithoutFormattedMessage() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeMessageTemplate(true)
+                .setIncludeFormattedMessage(false)
+                .build();
+
+        Message message = new ReusableMessageFactory().newMessage("Took {} ms", 5L);
+        String s = encode(layout, eventWithMessage(message));
+        assertThatJson(s).node("message").isAbsent();
+        assertThatJson(s).node("message_template").isEqualTo(TextNode.valueOf("Took {} ms"));
+        assertThatJson(s).node("message_params").isEqualTo("[5]");
+
+        // Messages without a template are formatted regardless
+        assertThatJson(encode(layout, eventWithMessage(new SimpleMessage("Plain"))))
+                .node("message").isEqualTo(TextNode.valueOf("Plain"));
+    }
+
+    @Test
+    public void rendersStructuredMessages() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStructuredMessages(true)
+                .build();
+
+        MapMessage<?, Object> mapMessage = new MapMessage<>()
+                .with("message", "Audit")
+                .with("user", "alice")
+                .with("count", 3)
+                .with("ratio", 0.5)
+                .with("success", true);
+        String s = layout.toSerializable(eventWithMessage(mapMessage));
+        assertThatJson(s).node("message").isEqualTo(TextNode.valueOf("Audit"));
+        assertThatJson(s).node("user").isEqualTo(TextNode.valueOf("alice"));
+        assertThatJson(s).node("count").isEqualTo(3);
+        assertThatJson(s).node("ratio").isEqualTo(0.5);
+        assertThatJson(s).node("success").isEqualTo(true);
+
+        assertThatJson(encode(layout, eventWithMessage(new StringMapMessage().with("k\"ey", "value"))))
+                .node("k\"ey").isEqualTo(TextNode.valueOf("value"))
+                .node("message").isAbsent();
+
+        assertThatJson(layout.toSerializable(eventWithMessage(new ObjectArrayMessage("a", 1, null))))
+                .node("message_params").isEqualTo("[\"a\", 1, null]")
+                .node("message").isAbsent();
+
+        LogstashLayoutV1 formattingLayout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .build();
+        assertThatJson(formattingLayout.toSerializable(eventWithMessage(new StringMapMessage().with("key", "value"))))
+                .node("message").isEqualTo(TextNode.valueOf("key=\"value\""))
+                .node("key").isAbsent();
+    }
+
+    @Test
+    public void rendersEcsFieldNames() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setFieldNames(FieldNames.ECS)
+                .build();
+
+        String s = layout.toSerializable(eventWithThrowable(1, new RuntimeException("Failed")));
+        assertThatJson(s).node("@version").isAbsent();
+        assertThatJson(s).node("source_host").isAbsent();
+        assertThatJson(s).node("level").isAbsent();
+        assertTrue(s.startsWith("{\"host.name\":\"host-name\",\"@timestamp\":"), s);
+        assertTrue(s.contains("\"log.level\":\"ERROR\""), s);
+        assertTrue(s.contains("\"log.syslog.severity.code\":3"), s);
+        assertTrue(s.contains("\"error.stack_trace\":\"java.lang.RuntimeException: Failed"), s);
+        assertTrue(s.contains("\"message\":"), s);
+    }
+
+    @Test
+    public void rendersStructuredThrowables() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeStacktrace(false)
+                .setStructuredThrowables(true)
+                .setThrowableFrames(2)
+                .setExcludedFramePackages("com.example.framework., org.junit.")
+                .build();
+        RuntimeException thrown = new RuntimeException("top",
+                new IllegalArgumentException("middle", new IllegalStateException("root \"cause\"")));
+        thrown.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("com.example.framework.Proxy", "invoke", "Proxy.java", 10),
+                new StackTraceElement("com.example.Service", "handle", "Service.java", 20),
+                new StackTraceElement("com.example.framework.Dispatcher", "dispatch", null, -1),
+                new StackTraceElement("com.example.Controller", "get", "Controller.java", 30),
+                new StackTraceElement("com.example.Main", "main", "Main.java", 40),
+        });
+
+        String s = encode(layout, eventWithThrowable(1, thrown));
+        assertThatJson(s)
+                .node("stack_trace").isAbsent()
+                .node("exception_class").isEqualTo("java.lang.RuntimeException")
+                .node("exception_message").isEqualTo("top")
+                .node("root_cause_class").isEqualTo("java.lang.IllegalStateException")
+                .node("root_cause_message").isEqualTo("root \"cause\"")
+                .node("frames").isEqualTo(Arrays.asList(
+                        "com.example.Service.handle(Service.java:20)",
+                        "com.example.Controller.get(Controller.java:30)"));
+
+        assertThatJson(layout.toSerializable(LOG_EVENT))
+                .node("exception_class").isEqualTo("java.lang.Exception")
+                .node("exception_message").isAbsent()
+                .node("root_cause_class").isEqualTo("java.lang.Exception");
+        RuntimeException withoutFrames = new RuntimeException();
+        withoutFrames.setStackTrace(new StackTraceElement[0]);
+        assertThatJson(layout.toSerializable(eventWithThrowable(1, withoutFrames)))
+                .node("frames").isEqualTo(Collections.emptyList());
+    }
+
+    @Test
+    public void findsRootCauseOfCircularCauses() {
+        Exception first = new Exception("first");
+        Exception second = new Exception("second", first);
+        first.initCause(second);
+        Throwable root = LogstashLayoutV1.rootCause(first);
+        assertTrue(root == first || root == second);
+        Exception cause = new Exception("cause");
+        assertEquals(cause, LogstashLayoutV1.rootCause(new Exception(new Exception(cause))));
+    }
+
+    @Test
+    public void renamesAndLeavesOutFields() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setFields(
+                        FieldName.rename(Field.THREAD_NAME, "thread"),
+                        FieldName.newBuilder().setField(Field.LEVEL_VALUE).setEnabled(false).build(),
+                        FieldName.disable(Field.VERSION))
+                .build();
+
+        String s = encode(layout, LOG_EVENT);
+        assertThatJson(s).node("thread").isEqualTo(TextNode.valueOf("thread-name"));
+        assertThatJson(s).node("thread_name").isAbsent();
+        assertThatJson(s).node("level_value").isAbsent();
+        assertThatJson(s).node("@version").isAbsent();
+        assertThatJson(s).node("source_host").isEqualTo(TextNode.valueOf("host-name"));
+        assertThatJson(s).node("level").isEqualTo(TextNode.valueOf("DEBUG"));
+    }
+
+    @Test
+    public void rendersEmptyObjectWithoutFields() {
+        FieldName[] fields = new FieldName[Field.values().length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = FieldName.disable(Field.values()[i]);
+        }
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setFields(fields)
+                .setIncludeThreadContext(false)
+                .build();
+
+        assertEquals("{}\n", layout.toSerializable(eventWithThrowable(1, new RuntimeException())));
+    }
+
+    @Test
+    public void rendersAdditionalFields() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setAdditionalFields(
+                        new KeyValuePair("service", "checkout"),
+                        new KeyValuePair("port", "8080"),
+                        new KeyValuePair("zip", "01234"),
+                        new KeyValuePair("canary", "false"),
+                        new KeyValuePair("request", "id-${ctx:key}"))
+                .build();
+
+        String s = layout.toSerializable(LOG_EVENT);
+        assertTrue(s.startsWith("{\"@version\":1,\"source_host\":\"host-name\",\"service\":\"checkout\"," +
+                "\"port\":8080,\"zip\":\"01234\",\"canary\":false,\"request\":\"id-value\","), s);
+    }
+
+    @Test
+    public void rendersCborLikeJson() throws IOException {
+        Exception thrown = new IllegalStateException("Failed \"badly\"\n", new RuntimeException("cause"));
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("key", "value");
+        contextData.putValue("count", 3);
+        LogEvent[] events = {
+                LOG_EVENT,
+                Log4jLogEvent.newBuilder()
+                        .setTimeMillis(1)
+                        .setThreadName("thread-\u00e5\u00e4\u00f6")
+                        .setLoggerName("logger-name")
+                        .setContextData(contextData)
+                        .setLevel(Level.ERROR)
+                        .setMessage(new ParameterizedMessage("{} took {} ms, {}", "Request", 17.5, -3))
+                        .setThrown(thrown)
+                        .build(),
+                eventWithMessage(new TaggedMessage(
+                        Tags.of("message", "tagged", "long", 1L, "double", 0.1, "bool", true), null)),
+                eventWithMessage(new StringMapMessage().with("audit", "\uD83D\uDE80")),
+        };
+        for (LogEvent event : events) {
+            LogstashLayoutV1.Builder<?> builder = LogstashLayoutV1.newBuilder()
+                    .setHost("host-name")
+                    .setIncludeStackHash(true)
+                    .setTypedContextValues(true)
+                    .setIncludeMessageTemplate(true)
+                    .setStructuredMessages(true)
+                    .setAdditionalFields(new KeyValuePair("port", "8080"), new KeyValuePair("thread", "${ctx:key}"));
+            LogstashLayoutV1 jsonLayout = builder.build();
+            LogstashLayoutV1 cborLayout = builder.setFormat(OutputFormat.CBOR).build();
+
+            ObjectMapper jsonMapper = new ObjectMapper();
+            ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+            String expected = jsonMapper.readTree(jsonLayout.toByteArray(event)).toString();
+            assertEquals(expected, cborMapper.readTree(cborLayout.toByteArray(event)).toString());
+            assertEquals(expected, cborMapper.readTree(encodeToBytes(cborLayout, event)).toString());
+            assertEquals(expected, cborMapper.readTree(cborLayout.toSerializable(event)
+                    .getBytes(cborLayout.getCharset())).toString());
+        }
+    }
+
+    /**
+     * Counts the writes to a destination, to tell how events are batched.
+     */
+    private static final class CountingDestination extends ByteArrayDestination {
+        private int writes;
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+            writes++;
+            super.writeBytes(data, offset, length);
+        }
+    }
+
+    private static Log4jLogEvent eventWithEndOfBatch(String message, boolean endOfBatch) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .setEndOfBatch(endOfBatch)
+                .build();
+    }
+
+    @Test
+    public void encodesBatchesBackToBack() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .build();
+        List<LogEvent> events = Arrays.asList(LOG_EVENT, eventWithEndOfBatch("second", false),
+                eventWithEndOfBatch("third", false));
+
+        try (CountingDestination destination = new CountingDestination()) {
+            layout.encode(events, destination);
+            destination.flush();
+            assertEquals(1, destination.writes);
+            assertEquals(encode(layout, events.get(0)) + encode(layout, events.get(1)) + encode(layout, events.get(2)),
+                    new String(destination.getBytes(), UTF_8));
+        }
+    }
+
+    // The background threads of asynchronous loggers, which are the ones that mark the end of batches
+    static void onLog4jThread(Runnable runnable) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Log4jThread(() -> {
+            try {
+                runnable.run();
+            }
+            catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "batching");
+        thread.start();
+        thread.join();
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static LogstashLayoutV1 batchEncodingLayout() {
+        return LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setBatchEncoding(true)
+                .build();
+    }
+
+    @Test
+    public void writesEveryEventAsItIsEncoded() throws InterruptedException {
+        onLog4jThread(() -> {
+            LogstashLayoutV1 layout = batchEncodingLayout();
+            try (CountingDestination destination = new CountingDestination()) {
+                layout.encode(eventWithEndOfBatch("first", false), destination);
+                assertEquals(1, destination.writes);
+                layout.encode(eventWithEndOfBatch("second", false), destination);
+                assertEquals(2, destination.writes);
+            }
+        });
+    }
+
+    @Test
+    public void rendersWithPooledBuffers() {
+        LogstashLayoutV1.Builder<?> builder = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeStackHash(true);
+        LogstashLayoutV1 threadLocal = builder.build();
+        LogstashLayoutV1 pooled = builder.setBufferPool(BufferPool.POOLED).setBufferPoolSize(1).build();
+
+        LogEvent event = eventWithThrowable(1, new IllegalStateException("pooled"));
+        assertEquals(threadLocal.toSerializable(LOG_EVENT), pooled.toSerializable(LOG_EVENT));
+        assertEquals(encode(threadLocal, event), encode(pooled, event));
+        assertEquals(toByteArray(threadLocal, event), toByteArray(pooled, event));
+    }
+
+    private static final class FailingMessage extends SimpleMessage {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int length() {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    @Test
+    public void writesEncodedEventsOfBatchBeforeFailure() {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .build();
+        LogEvent failing = Log4jLogEvent.newBuilder()
+                .setMessage(new FailingMessage())
+                .build();
+        List<LogEvent> events = Arrays.asList(eventWithEndOfBatch("first", false), failing,
+                eventWithEndOfBatch("third", false));
+
+        try (CountingDestination destination = new CountingDestination()) {
+            assertThrows(IllegalStateException.class, () -> layout.encode(events, destination));
+            destination.flush();
+            assertEquals(encode(layout, events.get(0)), new String(destination.getBytes(), UTF_8));
+        }
+    }
 }
@@ -0,0 +1,213 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LumberjackAppenderTest {
+    private LumberjackTestServer server;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new LumberjackTestServer();
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    private LumberjackAppender.Builder<?> appender() {
+        return LumberjackAppender.newBuilder()
+                .setName("lumberjack")
+                .setHost("127.0.0.1")
+                .setPort(server.getPort())
+                .setCompressionLevel(0)
+                .setReconnectDelayMillis(0);
+    }
+
+    private static LogEvent event(String message, boolean endOfBatch) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.INFO)
+                .setLoggerName("logger-name")
+                .setThreadName("thread-name")
+                .setMessage(new SimpleMessage(message))
+                .setEndOfBatch(endOfBatch)
+                .build();
+    }
+
+    @Test
+    public void sendsEventsInWindows() throws InterruptedException {
+        LumberjackAppender appender = appender()
+                .setWindowSize(2)
+                .setImmediateFlush(false)
+                .setLayout(LogstashLayoutV1.newBuilder().setHost("host-name").build())
+                .build();
+        appender.start();
+
+        appender.append(event("first", false));
+        appender.append(event("second", false));
+        appender.append(event("third", true));
+
+        String first = server.takeEvent();
+        assertFalse(first.endsWith("\n"));
+        assertThatJson(first)
+                .isEqualTo("{\"@version\":1,\"source_host\":\"host-name\","
+                        + "\"@timestamp\":\"1970-01-01T00:00:00.001Z\",\"level\":\"INFO\","
+                        + "\"level_value\":6,\"thread_name\":\"thread-name\",\"logger_name\":\"logger-name\","
+                        + "\"message\":\"first\"}");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("third");
+        assertEquals(2, server.getWindows());
+        assertEquals(0, server.getCompressedWindows());
+
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+        assertEquals(0, appender.getManager().getPendingWindows());
+    }
+
+    @Test
+    public void sendsEventsOfBatchEncodingLayoutsOnAsyncThreads() throws InterruptedException {
+        LumberjackAppender appender = appender()
+                .setWindowSize(2)
+                .setImmediateFlush(false)
+                .setLayout(LogstashLayoutV1Test.batchEncodingLayout())
+                .build();
+        appender.start();
+        LogstashLayoutV1Test.onLog4jThread(() -> {
+            appender.append(event("first", false));
+            appender.append(event("second", false));
+        });
+
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        assertEquals(1, server.getWindows());
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsLayoutsThatDoNotRenderJson() {
+        assertNull(appender().setLayout(PatternLayout.createDefaultLayout()).build());
+        assertNull(appender()
+                .setLayout(LogstashLayoutV1.newBuilder().setFormat(OutputFormat.CBOR).build())
+                .build());
+    }
+
+    @Test
+    public void holdsEventsUntilEndOfBatch() throws InterruptedException {
+        LumberjackAppender appender = appender()
+                .setImmediateFlush(false)
+                .setLingerMillis(0)
+                .build();
+        appender.start();
+
+        appender.append(event("first", false));
+        Thread.sleep(50);
+        assertFalse(server.hasEvents());
+
+        appender.append(event("second", true));
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        assertEquals(1, server.getWindows());
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsWindowsAfterLingering() throws InterruptedException {
+        LumberjackAppender appender = appender()
+                .setImmediateFlush(false)
+                .setLingerMillis(100)
+                .build();
+        appender.start();
+
+        appender.append(event("first", false));
+        appender.append(event("second", false));
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        assertEquals(1, server.getWindows());
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void compressesWindows() throws InterruptedException {
+        LumberjackAppender appender = appender()
+                .setCompressionLevel(6)
+                .setWindowSize(3)
+                .setImmediateFlush(false)
+                .build();
+        appender.start();
+
+        for (int i = 0; i < 6; i++) {
+            appender.append(event("event " + i, false));
+        }
+        for (int i = 0; i < 6; i++) {
+            assertThatJson(server.takeEvent()).node("message").isEqualTo("event " + i);
+        }
+        assertEquals(2, server.getCompressedWindows());
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitsForAcknowledgementsWhenWindowsArePending() throws InterruptedException {
+        server.setAcknowledge(false);
+        LumberjackAppender appender = appender()
+                .setMaxPendingWindows(2)
+                .setAckTimeoutMillis(200)
+                .build();
+        appender.start();
+
+        appender.append(event("first", false));
+        appender.append(event("second", false));
+        assertEquals(2, appender.getManager().getPendingWindows());
+
+        long start = System.nanoTime();
+        assertThrows(AppenderLoggingException.class, () -> appender.append(event("third", false)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(2, appender.getManager().getPendingWindows());
+
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        appender.stop(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void resendsUnacknowledgedWindowsAfterReconnecting() throws InterruptedException {
+        server.setAcknowledge(false);
+        LumberjackAppender appender = appender()
+                .setMaxPendingWindows(1)
+                .setAckTimeoutMillis(200)
+                .build();
+        appender.start();
+
+        appender.append(event("first", false));
+        assertThrows(AppenderLoggingException.class, () -> appender.append(event("second", false)));
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+
+        server.setAcknowledge(true);
+        appender.append(event("third", false));
+
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("first");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("second");
+        assertThatJson(server.takeEvent()).node("message").isEqualTo("third");
+        assertEquals(2, server.getConnections());
+
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+        assertEquals(0, appender.getManager().getPendingWindows());
+    }
+}
@@ -0,0 +1,167 @@
+package se.fnord.log4j2.logstash;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A Lumberjack (version 2) server that records the events it receives, and acknowledges windows unless told not to.
+ */
+final class LumberjackTestServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger windows = new AtomicInteger();
+    private final AtomicInteger compressedWindows = new AtomicInteger();
+    private volatile boolean acknowledge = true;
+
+    LumberjackTestServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "lumberjack-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void setAcknowledge(boolean acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+    int getWindows() {
+        return windows.get();
+    }
+
+    int getCompressedWindows() {
+        return compressedWindows.get();
+    }
+
+    int getConnections() {
+        return connections.size();
+    }
+
+    String takeEvent() throws InterruptedException {
+        String event = events.poll(5, TimeUnit.SECONDS);
+        if (event == null) {
+            throw new AssertionError("No event received");
+        }
+        return event;
+    }
+
+    boolean hasEvents() {
+        return !events.isEmpty();
+    }
+
+    /**
+     * Closes the connections accepted so far, discarding anything not yet acknowledged.
+     */
+    void dropConnections() throws IOException {
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                Thread reader = new Thread(() -> read(socket), "lumberjack-test-connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try (DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            while (true) {
+                expect(in, 'W');
+                int windowSize = in.readInt();
+                int sequence = readFrames(in, windowSize);
+                windows.incrementAndGet();
+                if (acknowledge) {
+                    out.writeByte('2');
+                    out.writeByte('A');
+                    out.writeInt(sequence);
+                    out.flush();
+                }
+            }
+        }
+        catch (EOFException e) {
+            // Closed by the client
+        }
+        catch (IOException e) {
+            if (!socket.isClosed()) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private int readFrames(DataInputStream in, int count) throws IOException {
+        int sequence = 0;
+        while (sequence < count) {
+            int version = in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            if (version != '2') {
+                throw new IOException("Unexpected version " + version);
+            }
+            if (type == 'C') {
+                byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+                compressedWindows.incrementAndGet();
+                InputStream inflated = new InflaterInputStream(new ByteArrayInputStream(compressed));
+                sequence = readFrames(new DataInputStream(inflated), count);
+            } else if (type == 'J') {
+                int frameSequence = in.readInt();
+                if (frameSequence != sequence + 1) {
+                    throw new IOException("Expected sequence " + (sequence + 1) + ", got " + frameSequence);
+                }
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                events.add(new String(payload, UTF_8));
+                sequence = frameSequence;
+            } else {
+                throw new IOException("Unexpected frame type " + (char) type);
+            }
+        }
+        return sequence;
+    }
+
+    private static void expect(DataInputStream in, char type) throws IOException {
+        int version = in.readUnsignedByte();
+        int actual = in.readUnsignedByte();
+        if (version != '2' || actual != type) {
+            throw new IOException("Expected 2" + type + ", got " + (char) version + (char) actual);
+        }
+    }
+}
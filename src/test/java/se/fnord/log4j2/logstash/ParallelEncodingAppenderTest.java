@@ -0,0 +1,187 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.OutputStreamAppender;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParallelEncodingAppenderTest {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private Configuration configuration;
+
+    @BeforeEach
+    public void createConfiguration() {
+        configuration = new DefaultConfiguration();
+        OutputStreamAppender appender = OutputStreamAppender.createAppender(
+                LogstashLayoutV1.newBuilder().setHost("host-name").build(), null, output, "output", false, true);
+        appender.start();
+        configuration.addAppender(appender);
+    }
+
+    private ParallelEncodingAppender.Builder<?> appender(String appenderRef) {
+        return ParallelEncodingAppender.newBuilder()
+                .setName("parallel")
+                .setConfiguration(configuration)
+                .setAppenderRef(AppenderRef.createAppenderRef(appenderRef, null, null));
+    }
+
+    private static void setMessage(MutableLogEvent event, String message) {
+        event.setTimeMillis(1);
+        event.setLevel(Level.INFO);
+        event.setLoggerName("logger-name");
+        event.setThreadName("thread-name");
+        event.setMessage(new SimpleMessage(message));
+    }
+
+    private String[] lines() {
+        return new String(output.toByteArray(), UTF_8).split("\n");
+    }
+
+    @Test
+    public void writesEventsInOrder() {
+        ParallelEncodingAppender appender = appender("output")
+                .setWorkers(4)
+                .setQueueSize(8)
+                .build();
+        appender.start();
+        assertTrue(appender.isStarted());
+
+        // Appenders may be handed the same mutable event over and over, like by asynchronous loggers
+        MutableLogEvent event = new MutableLogEvent();
+        for (int i = 0; i < 2000; i++) {
+            setMessage(event, "event " + i);
+            appender.append(event);
+        }
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+
+        String[] lines = lines();
+        assertEquals(2000, lines.length);
+        assertThatJson(lines[0])
+                .isEqualTo("{\"@version\":1,\"source_host\":\"host-name\","
+                        + "\"@timestamp\":\"1970-01-01T00:00:00.001Z\",\"level\":\"INFO\","
+                        + "\"level_value\":6,\"thread_name\":\"thread-name\",\"logger_name\":\"logger-name\","
+                        + "\"message\":\"event 0\"}");
+        for (int i = 0; i < lines.length; i++) {
+            assertThatJson(lines[i]).node("message").isEqualTo("event " + i);
+        }
+    }
+
+    @Test
+    public void writesEventsAppendedConcurrentlyWhole() throws InterruptedException {
+        ParallelEncodingAppender appender = appender("output")
+                .setWorkers(3)
+                .build();
+        appender.start();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String prefix = "thread " + t + " event ";
+            threads[t] = new Thread(() -> {
+                MutableLogEvent event = new MutableLogEvent();
+                for (int i = 0; i < 500; i++) {
+                    setMessage(event, prefix + i);
+                    appender.append(event);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+
+        int[] next = new int[threads.length];
+        String[] lines = lines();
+        assertEquals(2000, lines.length);
+        for (String line : lines) {
+            int thread = line.charAt(line.indexOf("thread ") + 7) - '0';
+            assertTrue(line.contains("\"thread " + thread + " event " + next[thread] + "\""), line);
+            next[thread]++;
+        }
+    }
+
+    private static final class OverflowingMessage extends SimpleMessage {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int length() {
+            throw new StackOverflowError("Expected failure");
+        }
+    }
+
+    @Test
+    public void writesEventsAfterErrorsInTheLayout() {
+        ParallelEncodingAppender appender = appender("output")
+                .setWorkers(2)
+                .build();
+        appender.start();
+
+        MutableLogEvent event = new MutableLogEvent();
+        setMessage(event, "first");
+        appender.append(event);
+        appender.append(Log4jLogEvent.newBuilder().setMessage(new OverflowingMessage()).build());
+        setMessage(event, "third");
+        appender.append(event);
+        assertTrue(appender.stop(5, TimeUnit.SECONDS));
+
+        String[] lines = lines();
+        assertEquals(2, lines.length);
+        assertThatJson(lines[0]).node("message").isEqualTo("first");
+        assertThatJson(lines[1]).node("message").isEqualTo("third");
+    }
+
+    @Test
+    public void failsAppendingWhenTheWriterHasDied() {
+        OutputStreamAppender broken = OutputStreamAppender.createAppender(
+                LogstashLayoutV1.newBuilder().build(), null, new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        throw new AssertionError("Expected failure");
+                    }
+                }, "broken", false, true);
+        broken.start();
+        configuration.addAppender(broken);
+        ParallelEncodingAppender appender = appender("broken")
+                .setWorkers(1)
+                .setQueueSize(2)
+                .build();
+        appender.start();
+
+        MutableLogEvent event = new MutableLogEvent();
+        setMessage(event, "event");
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(AppenderLoggingException.class, () -> {
+            for (int i = 0; i < 10; i++) {
+                appender.append(event);
+            }
+        }));
+        appender.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void doesNotStartWithoutAnOutputStreamAppender() {
+        ParallelEncodingAppender appender = appender("missing").build();
+        appender.start();
+        assertFalse(appender.isStarted());
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,221 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpoolAppenderTest {
+    @TempDir
+    Path directory;
+
+    private SpoolAppender appender(String fileName, int capacity) {
+        SpoolAppender appender = SpoolAppender.newBuilder()
+                .setName("spool")
+                .setFileName(directory.resolve(fileName).toString())
+                .setCapacity(capacity)
+                .setLayout(LogstashLayoutV1.newBuilder().setHost("host-name").build())
+                .build();
+        appender.start();
+        return appender;
+    }
+
+    private static LogEvent event(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1)
+                .setLevel(Level.INFO)
+                .setLoggerName("logger-name")
+                .setThreadName("thread-name")
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static String message(ByteBuffer event) {
+        byte[] bytes = new byte[event.remaining()];
+        event.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Test
+    public void writesEventsForReaders() throws IOException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4096);
+        appender.append(event("first"));
+        appender.append(event("second"));
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            assertThatJson(message(reader.next()))
+                    .isEqualTo("{\"@version\":1,\"source_host\":\"host-name\","
+                            + "\"@timestamp\":\"1970-01-01T00:00:00.001Z\",\"level\":\"INFO\","
+                            + "\"level_value\":6,\"thread_name\":\"thread-name\",\"logger_name\":\"logger-name\","
+                            + "\"message\":\"first\"}");
+            assertThatJson(message(reader.next())).node("message").isEqualTo("second");
+            assertNull(reader.next());
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writesEventsOfBatchEncodingLayoutsOnAsyncThreads() throws IOException, InterruptedException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = SpoolAppender.newBuilder()
+                .setName("spool")
+                .setFileName(fileName)
+                .setCapacity(4096)
+                .setLayout(LogstashLayoutV1Test.batchEncodingLayout())
+                .build();
+        appender.start();
+        LogstashLayoutV1Test.onLog4jThread(() -> {
+            appender.append(event("first"));
+            appender.append(event("second"));
+        });
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            assertThatJson(message(reader.next())).node("message").isEqualTo("first");
+            assertThatJson(message(reader.next())).node("message").isEqualTo("second");
+            assertNull(reader.next());
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readersContinueFromTheCommittedPosition() throws IOException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4096);
+        appender.append(event("first"));
+        appender.append(event("second"));
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            assertThatJson(message(reader.next())).node("message").isEqualTo("first");
+            reader.commit();
+            assertEquals(reader.getPosition(), appender.getManager().getReadPosition());
+            assertThatJson(message(reader.next())).node("message").isEqualTo("second");
+        }
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            assertThatJson(message(reader.next())).node("message").isEqualTo("second");
+            assertNull(reader.next());
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void wrapsAroundTheRing() throws IOException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4096);
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            for (int i = 0; i < 200; i++) {
+                appender.append(event("event " + i));
+                assertThatJson(message(reader.next())).node("message").isEqualTo("event " + i);
+                reader.commit();
+            }
+            assertNull(reader.next());
+            assertTrue(reader.getPosition() > 4 * 4096);
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsEventsWhenFull() throws IOException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4096);
+        int written = 0;
+        try {
+            while (true) {
+                appender.append(event("event " + written));
+                written++;
+            }
+        }
+        catch (AppenderLoggingException e) {
+            assertTrue(written > 0);
+        }
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            for (int i = 0; i < written; i++) {
+                assertThatJson(message(reader.next())).node("message").isEqualTo("event " + i);
+            }
+            assertNull(reader.next());
+            assertThrows(AppenderLoggingException.class, () -> appender.append(event("rejected")));
+            reader.commit();
+        }
+        appender.append(event("accepted"));
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void overwritesPartiallyWrittenFramesWhenReopened() throws IOException {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4096);
+        appender.append(event("first"));
+        long torn = appender.getManager().getWritePosition();
+        appender.append(event("second"));
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+
+        // A crash while writing the second event leaves its frame incomplete
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.seek(SpoolReader.HEADER_LENGTH + torn + SpoolReader.FRAME_HEADER_LENGTH + 4);
+            file.writeInt(0);
+        }
+
+        SpoolAppender reopened = appender("events.spool", 4096);
+        assertEquals(torn, reopened.getManager().getWritePosition());
+        reopened.append(event("third"));
+
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            assertThatJson(message(reader.next())).node("message").isEqualTo("first");
+            assertThatJson(message(reader.next())).node("message").isEqualTo("third");
+            assertNull(reader.next());
+        }
+        assertTrue(reopened.stop(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writesConcurrently() throws Exception {
+        String fileName = directory.resolve("events.spool").toString();
+        SpoolAppender appender = appender("events.spool", 4 * 1024 * 1024);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String prefix = "thread " + t + " event ";
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    appender.append(event(prefix + i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int[] next = new int[4];
+        try (SpoolReader reader = SpoolReader.open(fileName)) {
+            for (int i = 0; i < 4000; i++) {
+                String message = message(reader.next());
+                int thread = message.charAt(message.indexOf("thread ") + 7) - '0';
+                assertTrue(message.contains("\"thread " + thread + " event " + next[thread] + "\""), message);
+                next[thread]++;
+            }
+            assertNull(reader.next());
+        }
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,49 @@
+package se.fnord.log4j2.logstash;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class StackTraceHashTest {
+    private static final StackTraceElement[] TRACE = {
+            new StackTraceElement("a.B", "method", "B.java", 10),
+            new StackTraceElement("a.C", "method", "C.java", 20),
+    };
+
+    private static <T extends Throwable> T withTrace(T throwable, StackTraceElement... trace) {
+        throwable.setStackTrace(trace);
+        return throwable;
+    }
+
+    @Test
+    public void ignoresMessages() {
+        assertEquals(
+                StackTraceHash.hash(withTrace(new IllegalStateException("one"), TRACE)),
+                StackTraceHash.hash(withTrace(new IllegalStateException("two"), TRACE)));
+    }
+
+    @Test
+    public void isStable() {
+        assertEquals(0xc30fdb122ecc58c8L, StackTraceHash.hash(withTrace(new IllegalStateException(), TRACE)));
+    }
+
+    @Test
+    public void dependsOnClassFramesAndCauses() {
+        long hash = StackTraceHash.hash(withTrace(new IllegalStateException(), TRACE));
+        assertNotEquals(hash, StackTraceHash.hash(withTrace(new IllegalArgumentException(), TRACE)));
+        assertNotEquals(hash, StackTraceHash.hash(withTrace(new IllegalStateException(), TRACE[0])));
+        assertNotEquals(hash, StackTraceHash.hash(withTrace(new IllegalStateException(), TRACE[0],
+                new StackTraceElement("a.C", "method", "C.java", 21))));
+        assertNotEquals(hash, StackTraceHash.hash(withTrace(
+                new IllegalStateException(withTrace(new RuntimeException(), TRACE)), TRACE)));
+    }
+
+    @Test
+    public void handlesCircularCauses() {
+        Exception first = withTrace(new Exception(), TRACE);
+        Exception second = withTrace(new Exception(first), TRACE);
+        first.initCause(second);
+        StackTraceHash.hash(first);
+    }
+}
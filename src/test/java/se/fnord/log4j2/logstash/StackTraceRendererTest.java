@@ -0,0 +1,185 @@
+package se.fnord.log4j2.logstash;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StackTraceRendererTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static String printStackTrace(Throwable t) {
+        StringWriter stringWriter = new StringWriter();
+        t.printStackTrace(new PrintWriter(stringWriter));
+        return stringWriter.toString();
+    }
+
+    private static String render(Throwable t) {
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        jsonBuffer.append((byte) '"');
+        new StackTraceRenderer(jsonBuffer).render(t, null, jsonBuffer);
+        jsonBuffer.append((byte) '"');
+        try {
+            return MAPPER.readValue(jsonBuffer.toString(), String.class);
+        }
+        catch (IOException e) {
+            throw new AssertionError("Not a valid JSON string: " + jsonBuffer, e);
+        }
+    }
+
+    private static void assertRendersLikePrintStackTrace(Throwable t) {
+        assertEquals(printStackTrace(t), render(t));
+    }
+
+    @Test
+    public void rendersThrowable() {
+        assertRendersLikePrintStackTrace(new IllegalArgumentException("Test"));
+        assertTrue(render(new IllegalArgumentException("Test")).startsWith("java.lang.IllegalArgumentException: Test"));
+    }
+
+    @Test
+    public void rendersThrowableWithoutMessage() {
+        assertRendersLikePrintStackTrace(new IllegalStateException());
+    }
+
+    @Test
+    public void rendersMessageThatNeedsEscaping() {
+        assertRendersLikePrintStackTrace(new IllegalStateException("\"quoted\"\n\tand \u00e5\u00e4\u00f6 \ud83d\ude80"));
+    }
+
+    @Test
+    public void rendersCausesWithCommonFramesElided() {
+        Exception root = new IllegalStateException("root");
+        Exception middle = new RuntimeException("middle", root);
+        assertRendersLikePrintStackTrace(new Exception("top", middle));
+    }
+
+    @Test
+    public void rendersSuppressedExceptions() {
+        Exception top = new Exception("top");
+        Exception suppressed = new IllegalStateException("suppressed", new RuntimeException("cause"));
+        suppressed.addSuppressed(new UnsupportedOperationException("nested"));
+        top.addSuppressed(suppressed);
+        top.initCause(new RuntimeException("cause"));
+        assertRendersLikePrintStackTrace(top);
+    }
+
+    @Test
+    public void rendersCircularReferences() {
+        Exception first = new Exception("first");
+        Exception second = new Exception("second", first);
+        first.initCause(second);
+        assertRendersLikePrintStackTrace(first);
+    }
+
+    @Test
+    public void rendersOverriddenToString() {
+        assertRendersLikePrintStackTrace(new Exception("message") {
+            @Override
+            public String toString() {
+                return "custom";
+            }
+        });
+    }
+
+    @Test
+    public void rendersUnusualFrames() {
+        Exception e = new Exception("frames");
+        e.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("a.B", "native", "B.java", -2),
+                new StackTraceElement("a.B", "unknown", null, 10),
+                new StackTraceElement("a.B", "noLine", "B.java", -1),
+                new StackTraceElement("a.B", "line", "B.java", 42),
+        });
+        assertRendersLikePrintStackTrace(e);
+    }
+
+    @Test
+    public void rendersDeepRecursion() {
+        try {
+            recurse(100);
+        }
+        catch (IllegalStateException e) {
+            assertRendersLikePrintStackTrace(new RuntimeException("wrapped", e));
+        }
+    }
+
+    private static void recurse(int depth) {
+        if (depth == 0) {
+            throw new IllegalStateException("deep");
+        }
+        recurse(depth - 1);
+    }
+
+    @Test
+    public void rendersCachedFrames() {
+        Exception e = new Exception("top", new IllegalStateException("cause"));
+        e.addSuppressed(new RuntimeException("suppressed"));
+        FragmentCache<StackTraceElement> frameCache = new FragmentCache<>(1024);
+        StackTraceRenderer renderer = new StackTraceRenderer(new JsonBuffer(0));
+
+        JsonBuffer uncached = new JsonBuffer(16);
+        renderer.render(e, null, uncached);
+        JsonBuffer first = new JsonBuffer(16);
+        renderer.render(e, frameCache, first);
+        JsonBuffer second = new JsonBuffer(16);
+        renderer.render(e, frameCache, second);
+
+        assertEquals(uncached.toString(), first.toString());
+        assertEquals(uncached.toString(), second.toString());
+        assertTrue(frameCache.getHits() > 0);
+        assertTrue(frameCache.getMisses() > 0);
+    }
+
+    private static Throwable throwable(String message, int depth, Throwable cause) {
+        StackTraceElement[] trace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            trace[i] = new StackTraceElement("com.example.Service" + i, "handle", "Service" + i + ".java", i + 1);
+        }
+        Throwable throwable = new RuntimeException(message, cause);
+        throwable.setStackTrace(trace);
+        return throwable;
+    }
+
+    @Test
+    public void truncatesFramesAndDepth() throws IOException {
+        Throwable thrown = throwable("top", 5, throwable("middle", 4, throwable("bottom", 3, null)));
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        jsonBuffer.append((byte) '"');
+        new StackTraceRenderer(jsonBuffer).render(thrown, null, 2, 1, jsonBuffer);
+        jsonBuffer.append((byte) '"');
+
+        String n = System.lineSeparator();
+        assertEquals("java.lang.RuntimeException: top" + n
+                + "\tat com.example.Service0.handle(Service0.java:1)" + n
+                + "\tat com.example.Service1.handle(Service1.java:2)" + n
+                + "\t... 3 frames truncated" + n
+                + "Caused by: java.lang.RuntimeException: middle" + n
+                + "\tat com.example.Service0.handle(Service0.java:1)" + n
+                + "\tat com.example.Service1.handle(Service1.java:2)" + n
+                + "\t... 2 frames truncated" + n
+                + "Caused by: [TRUNCATED]" + n,
+                MAPPER.readValue(jsonBuffer.toString(), String.class));
+    }
+
+    @Test
+    public void truncatesMessages() throws IOException {
+        Throwable thrown = throwable("long message", 1, throwable("cause", 1, null));
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        jsonBuffer.append((byte) '"');
+        new StackTraceRenderer(jsonBuffer).render(thrown, null, 0, 0, 4, jsonBuffer);
+        jsonBuffer.append((byte) '"');
+
+        String n = System.lineSeparator();
+        assertEquals("java.lang.RuntimeException: long...[truncated 8 chars]" + n
+                + "\tat com.example.Service0.handle(Service0.java:1)" + n
+                + "Caused by: java.lang.RuntimeException: caus...[truncated 1 chars]" + n
+                + "\t... 1 more" + n,
+                MAPPER.readValue(jsonBuffer.toString(), String.class));
+    }
+}
@@ -0,0 +1,271 @@
+package se.fnord.log4j2.logstash;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import se.fnord.taggedmessage.TaggedMessage;
+import se.fnord.taggedmessage.Tags;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that encoding events does not allocate once the layout is warmed up, by counting the bytes allocated by the
+ * current thread over many calls to {@link LogstashLayoutV1#encode}. The date and time of timestamps are rendered once
+ * per second, which is the one allocation on a clock that moves; the other tests keep the clock still.
+ */
+public class SteadyStateAllocationTest {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int WARMUP_EVENTS = 20_000;
+    private static final int MEASURED_EVENTS = 10_000;
+
+    /**
+     * Stack traces are rendered from the array returned by {@link Throwable#getStackTrace()}, which is a new copy
+     * for every event: an array header, and a reference per frame.
+     *
+     * Frames of classes in named modules, like {@code java.base}, are rendered with
+     * {@link StackTraceElement#toString()}, which allocates several hundred bytes per frame unless the frames are
+     * cached with {@code stackFrameCacheSize}. Events that render larger than {@code log4j.layoutStringBuilder.maxSize}
+     * allocate buffers to render in, so the traces here are kept short.
+     */
+    private static final long THROWABLE_BYTES = 16;
+    private static final long THROWABLE_BYTES_PER_FRAME = 8;
+
+    /**
+     * The timestamp renderer renders the date and time up to the second into a new array whenever the second of the
+     * events changes, and holds on to it in a new holder: about 64 bytes, with room for larger object headers.
+     */
+    private static final long BYTES_PER_SECOND = 96;
+
+    @BeforeAll
+    public static void requireAllocationCounting() {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled(),
+                "Thread allocation counting is not available");
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Encodes the events in turn, over and over
+    private static long allocatedBytes(LogstashLayoutV1 layout, LogEvent[] events) {
+        DiscardingDestination destination = new DiscardingDestination();
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            layout.encode(events[i % events.length], destination);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_EVENTS; i++) {
+            layout.encode(events[i % events.length], destination);
+        }
+        long allocated = allocatedBytes() - before;
+        assertTrue(destination.written > 0);
+        return allocated;
+    }
+
+    private static long bytesPerEvent(LogstashLayoutV1 layout, LogEvent event) {
+        return allocatedBytes(layout, new LogEvent[] { event }) / MEASURED_EVENTS;
+    }
+
+    private static LogstashLayoutV1 layout(boolean includeTimestamp) {
+        return LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setIncludeTimestamp(includeTimestamp)
+                .build();
+    }
+
+    private static LogEvent event(Message message) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("request", "b7f3c1");
+        contextData.freeze();
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1561939200123L)
+                .setLevel(Level.INFO)
+                .setThreadName("thread-name")
+                .setLoggerName("logger-name")
+                .setContextData(contextData)
+                .setMessage(message)
+                .build();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void simpleMessageDoesNotAllocate(boolean includeTimestamp) {
+        LogEvent event = event(new SimpleMessage("Request completed \"quickly\" \u00e5\u00e4\u00f6"));
+        assertEquals(0, bytesPerEvent(layout(includeTimestamp), event));
+    }
+
+    @Test
+    public void movingClockAllocatesOncePerSecond() {
+        // A millisecond apart, so that the measured events span ten seconds
+        LogEvent[] events = new LogEvent[MEASURED_EVENTS];
+        Message message = new SimpleMessage("Request completed");
+        for (int i = 0; i < events.length; i++) {
+            events[i] = Log4jLogEvent.newBuilder()
+                    .setTimeMillis(1561939200123L + i)
+                    .setLevel(Level.INFO)
+                    .setLoggerName("logger-name")
+                    .setMessage(message)
+                    .build();
+        }
+        long seconds = 0;
+        for (int i = 0; i < events.length; i++) {
+            LogEvent previous = events[(i + events.length - 1) % events.length];
+            if (events[i].getTimeMillis() / 1000 != previous.getTimeMillis() / 1000) {
+                seconds++;
+            }
+        }
+
+        long bytes = allocatedBytes(layout(true), events);
+        long budget = seconds * BYTES_PER_SECOND;
+        assertTrue(bytes <= budget, bytes + " bytes for " + seconds + " seconds, budget " + budget);
+        assertEquals(0, bytes / MEASURED_EVENTS);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void reusableParameterizedMessageDoesNotAllocate(boolean includeTimestamp) {
+        Object user = "alice";
+        Object items = 42;
+        Message message = new ReusableMessageFactory().newMessage("User {} fetched {} items", user, items);
+        assertEquals(0, bytesPerEvent(layout(includeTimestamp), event(message)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void taggedMessageDoesNotAllocate(boolean includeTimestamp) {
+        Message message = new TaggedMessage(Tags.of(
+                "message", "Request completed",
+                "status", 200,
+                "duration", 17.5,
+                "cached", false), null);
+        assertEquals(0, bytesPerEvent(layout(includeTimestamp), event(message)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void contextDataDoesNotAllocate(boolean typedContextValues) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        for (int i = 0; i < 20; i++) {
+            contextData.putValue("key" + i, i % 2 == 0 ? "value-" + i : (Object) (long) i);
+        }
+        contextData.freeze();
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setTimeMillis(1561939200123L)
+                .setLevel(Level.INFO)
+                .setLoggerName("logger-name")
+                .setContextData(contextData)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setTypedContextValues(typedContextValues)
+                .build();
+        assertEquals(0, bytesPerEvent(layout, event));
+    }
+
+    @ParameterizedTest
+    @EnumSource(OutputFormat.class)
+    public void formatsDoNotAllocate(OutputFormat format) {
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setFormat(format)
+                .build();
+        assertEquals(0, bytesPerEvent(layout, event(new SimpleMessage("message"))));
+    }
+
+    private static Throwable throwable(String message, int depth, Throwable cause) {
+        StackTraceElement[] trace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            trace[i] = new StackTraceElement("com.example.Service" + i, "handle", "Service" + i + ".java", i + 1);
+        }
+        Throwable throwable = new RuntimeException(message, cause);
+        throwable.setStackTrace(trace);
+        return throwable;
+    }
+
+    private static LogEvent eventWithThrowable(Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1561939200123L)
+                .setLevel(Level.ERROR)
+                .setLoggerName("logger-name")
+                .setMessage(new SimpleMessage("Request failed"))
+                .setThrown(thrown)
+                .build();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 0, 1024 })
+    public void throwablesStayWithinBudget(int stackFrameCacheSize) {
+        Throwable thrown = throwable("Wrapped", 10, throwable("Cause", 12, null));
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStackFrameCacheSize(stackFrameCacheSize)
+                .build();
+        long budget = 2 * THROWABLE_BYTES + 22 * THROWABLE_BYTES_PER_FRAME;
+        long bytes = bytesPerEvent(layout, eventWithThrowable(thrown));
+        assertTrue(bytes <= budget, bytes + " bytes per event, budget " + budget);
+    }
+
+    @Test
+    public void cachedFramesOfNamedModulesStayWithinBudget() throws ReflectiveOperationException {
+        // Thrown through reflection, so that the trace has frames of java.base
+        Throwable thrown = (Throwable) SteadyStateAllocationTest.class.getDeclaredMethod("newException").invoke(null);
+        thrown.setStackTrace(Arrays.copyOf(thrown.getStackTrace(), 8));
+        LogstashLayoutV1 layout = LogstashLayoutV1.newBuilder()
+                .setHost("host-name")
+                .setStackFrameCacheSize(1024)
+                .build();
+        long budget = THROWABLE_BYTES + thrown.getStackTrace().length * THROWABLE_BYTES_PER_FRAME;
+        long bytes = bytesPerEvent(layout, eventWithThrowable(thrown));
+        assertTrue(bytes <= budget, bytes + " bytes per event, budget " + budget);
+    }
+
+    private static Throwable newException() {
+        return new IllegalStateException("Thrown");
+    }
+
+    private static final class DiscardingDestination implements ByteBufferDestination {
+        private final ByteBuffer byteBuffer = ByteBuffer.allocate(8 * 1024);
+        private long written;
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return byteBuffer;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buf) {
+            buf.flip();
+            written += buf.remaining();
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer data) {
+            written += data.remaining();
+            data.position(data.limit());
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+            written += length;
+        }
+    }
+}
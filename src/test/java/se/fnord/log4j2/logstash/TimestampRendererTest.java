@@ -0,0 +1,57 @@
+package se.fnord.log4j2.logstash;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TimestampRendererTest {
+    private static String render(TimestampPrecision precision, long epochSecond, int nanoOfSecond) {
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        new TimestampRenderer(precision).render(epochSecond, nanoOfSecond, jsonBuffer);
+        return jsonBuffer.toString();
+    }
+
+    @Test
+    public void rendersMilliseconds() {
+        assertEquals("1970-01-01T00:00:00.001Z", render(TimestampPrecision.MILLISECONDS, 0, 1_000_000));
+        assertEquals("1970-01-01T00:00:00.123Z", render(TimestampPrecision.MILLISECONDS, 0, 123_456_789));
+    }
+
+    @Test
+    public void rendersMicroseconds() {
+        assertEquals("1970-01-01T00:00:00.000001Z", render(TimestampPrecision.MICROSECONDS, 0, 1_000));
+        assertEquals("1970-01-01T00:00:00.123456Z", render(TimestampPrecision.MICROSECONDS, 0, 123_456_789));
+    }
+
+    @Test
+    public void rendersNanoseconds() {
+        assertEquals("1970-01-01T00:00:00.000000001Z", render(TimestampPrecision.NANOSECONDS, 0, 1));
+        assertEquals("1970-01-01T00:00:00.123456789Z", render(TimestampPrecision.NANOSECONDS, 0, 123_456_789));
+    }
+
+    @Test
+    public void updatesCachedSecond() {
+        TimestampRenderer renderer = new TimestampRenderer(TimestampPrecision.MILLISECONDS);
+        JsonBuffer jsonBuffer = new JsonBuffer(16);
+        renderer.render(1, 0, jsonBuffer);
+        renderer.render(1, 1_000_000, jsonBuffer.append((byte) ' '));
+        renderer.render(61, 2_000_000, jsonBuffer.append((byte) ' '));
+        assertEquals("1970-01-01T00:00:01.000Z 1970-01-01T00:00:01.001Z 1970-01-01T00:01:01.002Z",
+                jsonBuffer.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = { -86401, -1, 0, 951782400, 951868799, 1561939200, 4102444800L, 253402300799L })
+    public void rendersSameDateAndTimeAsJavaTime(long epochSecond) {
+        String expected = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'")
+                .withZone(ZoneOffset.UTC)
+                .format(Instant.ofEpochSecond(epochSecond, 987_654_321));
+        assertEquals(expected, render(TimestampPrecision.MICROSECONDS, epochSecond, 987_654_321));
+    }
+}